@@ -0,0 +1,111 @@
+package com.matburt.mobileorg.test.OrgData;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+
+import com.matburt.mobileorg.OrgData.OrgChangeNotifier;
+import com.matburt.mobileorg.OrgData.OrgContract.OrgData;
+import com.matburt.mobileorg.OrgData.OrgProvider;
+import com.matburt.mobileorg.test.util.OrgTestUtils;
+
+public class OrgChangeNotifierTest extends ProviderTestCase2<OrgProvider> {
+
+	private MockContentResolver resolver;
+	private CountDownLatch latch;
+	private HashSet<Uri> changes;
+	private OrgChangeNotifier.OnChangeListener listener;
+
+	public OrgChangeNotifierTest() {
+		super(OrgProvider.class, OrgProvider.class.getName());
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		this.resolver = getMockContentResolver();
+		this.latch = new CountDownLatch(1);
+		this.changes = new HashSet<Uri>();
+		this.listener = new OrgChangeNotifier.OnChangeListener() {
+			@Override
+			public void onChange(Set<Uri> changedUris) {
+				synchronized (changes) {
+					changes.addAll(changedUris);
+				}
+				latch.countDown();
+			}
+		};
+		OrgChangeNotifier.registerListener(listener);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		OrgChangeNotifier.unregisterListener(listener);
+		super.tearDown();
+	}
+
+	public void testChangesCoalescedInBatch() throws InterruptedException {
+		OrgChangeNotifier.beginBatch();
+		OrgTestUtils.setupParentScenario(resolver);
+		resolver.delete(OrgData.CONTENT_URI, null, null);
+		OrgChangeNotifier.endBatch();
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		synchronized (changes) {
+			assertTrue(changes.contains(OrgData.CONTENT_URI));
+			for (Uri uri : changes)
+				assertFalse(uri.toString().startsWith(OrgData.CONTENT_URI + "/"));
+		}
+	}
+
+	public void testSteadyChangesDispatchedAfterMaxDelay() throws InterruptedException {
+		long start = SystemClock.uptimeMillis();
+		while (latch.getCount() > 0
+				&& SystemClock.uptimeMillis() - start < 3 * OrgChangeNotifier.MAX_DELAY_MS) {
+			OrgChangeNotifier.notifyChange(OrgData.CONTENT_URI, resolver);
+			Thread.sleep(OrgChangeNotifier.DEBOUNCE_MS / 3);
+		}
+
+		assertEquals(0, latch.getCount());
+		synchronized (changes) {
+			assertTrue(changes.contains(OrgData.CONTENT_URI));
+		}
+	}
+
+	public void testBatchOfOtherThreadDoesNotHoldChanges() throws InterruptedException {
+		final CountDownLatch batchStarted = new CountDownLatch(1);
+		final CountDownLatch batchReleased = new CountDownLatch(1);
+		Thread batchThread = new Thread() {
+			@Override
+			public void run() {
+				OrgChangeNotifier.beginBatch();
+				batchStarted.countDown();
+				try {
+					batchReleased.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+				} finally {
+					OrgChangeNotifier.endBatch();
+				}
+			}
+		};
+		batchThread.start();
+		assertTrue(batchStarted.await(5, TimeUnit.SECONDS));
+
+		try {
+			OrgChangeNotifier.notifyChange(OrgData.CONTENT_URI, resolver);
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			synchronized (changes) {
+				assertTrue(changes.contains(OrgData.CONTENT_URI));
+			}
+		} finally {
+			batchReleased.countDown();
+			batchThread.join();
+		}
+	}
+}
@@ -113,4 +113,63 @@ public class OrgEditTest extends ProviderTestCase2<OrgProvider> {
 		String editsString = OrgEdit.editsToString(resolver);
 		assertEquals(correctEditString.trim(), editsString.trim());
 	}
+	
+	public void testCompactEditsFoldsChanges() {
+		writeEdit(OrgEdit.TYPE.TODO, "node", "TODO", "DONE");
+		writeEdit(OrgEdit.TYPE.BODY, "node", "a", "b");
+		writeEdit(OrgEdit.TYPE.TODO, "node", "DONE", "WAITING");
+		
+		OrgEdit.compactEdits(resolver);
+		
+		ArrayList<OrgEdit> edits = getEdits();
+		assertEquals(2, edits.size());
+		assertEquals(OrgEdit.TYPE.TODO, edits.get(0).type);
+		assertEquals("TODO", edits.get(0).oldValue);
+		assertEquals("WAITING", edits.get(0).newValue);
+		assertEquals(OrgEdit.TYPE.BODY, edits.get(1).type);
+	}
+	
+	public void testCompactEditsDropsRoundTrips() {
+		writeEdit(OrgEdit.TYPE.TODO, "node", "TODO", "DONE");
+		writeEdit(OrgEdit.TYPE.TODO, "node", "DONE", "TODO");
+		writeEdit(OrgEdit.TYPE.TODO, "other", "TODO", "DONE");
+		
+		OrgEdit.compactEdits(resolver);
+		
+		ArrayList<OrgEdit> edits = getEdits();
+		assertEquals(1, edits.size());
+		assertEquals("other", edits.get(0).nodeId);
+	}
+	
+	public void testCompactEditsCollapsesIntoDelete() {
+		writeEdit(OrgEdit.TYPE.HEADING, "node", "a", "b");
+		writeEdit(OrgEdit.TYPE.TAGS, "node", "", "tag");
+		writeEdit(OrgEdit.TYPE.DELETE, "node", "", "");
+		
+		OrgEdit.compactEdits(resolver);
+		
+		ArrayList<OrgEdit> edits = getEdits();
+		assertEquals(1, edits.size());
+		assertEquals(OrgEdit.TYPE.DELETE, edits.get(0).type);
+	}
+	
+	private void writeEdit(OrgEdit.TYPE type, String nodeId, String oldValue, String newValue) {
+		OrgEdit edit = new OrgEdit();
+		edit.type = type;
+		edit.nodeId = nodeId;
+		edit.title = "title";
+		edit.oldValue = oldValue;
+		edit.newValue = newValue;
+		edit.write(resolver);
+	}
+	
+	private ArrayList<OrgEdit> getEdits() {
+		Cursor cursor = resolver.query(Edits.CONTENT_URI, Edits.DEFAULT_COLUMNS,
+				null, null, Edits.ID + " ASC");
+		ArrayList<OrgEdit> edits = new ArrayList<OrgEdit>();
+		while (cursor.moveToNext())
+			edits.add(new OrgEdit(cursor));
+		cursor.close();
+		return edits;
+	}
 }
@@ -2,6 +2,7 @@ package com.matburt.mobileorg.test.OrgData;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
@@ -16,6 +17,8 @@ import com.matburt.mobileorg.OrgData.OrgContract.OrgData;
 import com.matburt.mobileorg.OrgData.OrgFile;
 import com.matburt.mobileorg.OrgData.OrgFileParser;
 import com.matburt.mobileorg.OrgData.OrgNode;
+import com.matburt.mobileorg.OrgData.OrgNodeCache;
+import com.matburt.mobileorg.OrgData.OrgNodeDate;
 import com.matburt.mobileorg.OrgData.OrgProvider;
 import com.matburt.mobileorg.OrgData.OrgProviderUtils;
 import com.matburt.mobileorg.test.util.OrgTestFiles;
@@ -51,7 +54,7 @@ public class OrgFileParserTest extends ProviderTestCase2<OrgProvider> {
 		super.tearDown();
 	}
 	
-	public void testParseSimple() {
+	public void testParseSimple() throws IOException {
 		Cursor cursor = resolver.query(OrgData.CONTENT_URI, OrgData.DEFAULT_COLUMNS, 
 				null, null, null);
 		assertNotNull(cursor);
@@ -64,7 +67,8 @@ public class OrgFileParserTest extends ProviderTestCase2<OrgProvider> {
 		
 		// it's 2 because the top file orgdata entry is not inserted through database stub
 		assertEquals(2, db.fastInsertNodeCalls); 
-		assertEquals(3, db.fastInsertNodePayloadCalls);
+		// headings are inserted with their payload, only the file node is updated
+		assertEquals(1, db.fastInsertNodePayloadCalls);
 
 		cursor = resolver.query(OrgData.CONTENT_URI, OrgData.DEFAULT_COLUMNS,
 				null, null, null);
@@ -78,7 +82,7 @@ public class OrgFileParserTest extends ProviderTestCase2<OrgProvider> {
 		cursor.close();
 	}
 	
-	public void testParseParentChildRelation() throws OrgNodeNotFoundException {
+	public void testParseParentChildRelation() throws IOException, OrgNodeNotFoundException {
 		InputStream is = new ByteArrayInputStream(SimpleOrgFiles.orgFile.getBytes());
 		BufferedReader breader = new BufferedReader(new InputStreamReader(is));
 		final String name = "file alias";
@@ -106,6 +110,63 @@ public class OrgFileParserTest extends ProviderTestCase2<OrgProvider> {
 		assertEquals(topNode.id, childNode.parentId);
 	}
 	
+	public void testParseIncrementalKeepsNodeIds() throws IOException, OrgNodeNotFoundException {
+		final String filename = "GTD.org";
+		parseFile(new OrgFile(filename, "file alias", ""), SimpleOrgFiles.orgFile);
+		OrgNode topNode = getNodeByName(SimpleOrgFiles.orgFileTopHeading);
+		OrgNode childNode = getNodeByName(SimpleOrgFiles.orgFileChildHeading);
+		final int insertCalls = db.fastInsertNodeCalls;
+
+		parseFile(new OrgFile(filename, "file alias", ""), SimpleOrgFiles.orgFile
+				+ "\nchild payload\n* added heading");
+		assertEquals(insertCalls + 1, db.fastInsertNodeCalls);
+		
+		OrgNode reparsedTopNode = getNodeByName(SimpleOrgFiles.orgFileTopHeading);
+		OrgNode reparsedChildNode = getNodeByName(SimpleOrgFiles.orgFileChildHeading);
+		assertEquals(topNode.id, reparsedTopNode.id);
+		assertEquals(childNode.id, reparsedChildNode.id);
+		assertEquals("child payload\n", reparsedChildNode.getPayload());
+		assertNotNull(getNodeByName("added heading"));
+		
+		parseFile(new OrgFile(filename, "file alias", ""), "* " + SimpleOrgFiles.orgFileTopHeading);
+		Cursor cursor = resolver.query(OrgData.CONTENT_URI, OrgData.DEFAULT_COLUMNS, OrgData.NAME + "=?",
+				new String[] { SimpleOrgFiles.orgFileChildHeading }, null);
+		assertEquals(0, cursor.getCount());
+		cursor.close();
+		assertEquals(topNode.id, getNodeByName(SimpleOrgFiles.orgFileTopHeading).id);
+	}
+	
+	public void testParseCachesOlpIds() throws IOException, OrgNodeNotFoundException {
+		parseFile(new OrgFile("GTD.org", "file alias", ""), SimpleOrgFiles.orgFile);
+		OrgNode topNode = getNodeByName(SimpleOrgFiles.orgFileTopHeading);
+		OrgNode childNode = getNodeByName(SimpleOrgFiles.orgFileChildHeading);
+		
+		final String childOlpId = "olp:GTD.org:" + SimpleOrgFiles.orgFileTopHeading
+				+ "/" + SimpleOrgFiles.orgFileChildHeading;
+		assertEquals(childOlpId, OrgNodeCache.getOlpId(childNode));
+		assertEquals(childOlpId, childNode.getOlpId(resolver));
+		
+		topNode.name = "renamed";
+		topNode.write(resolver);
+		assertNull(OrgNodeCache.getOlpId(childNode));
+		assertEquals("olp:GTD.org:renamed/" + SimpleOrgFiles.orgFileChildHeading,
+				childNode.getOlpId(resolver));
+	}
+	
+	private void parseFile(OrgFile orgFile, String contents) throws IOException {
+		InputStream is = new ByteArrayInputStream(contents.getBytes());
+		BufferedReader breader = new BufferedReader(new InputStreamReader(is));
+		parser.parse(orgFile, breader);
+	}
+	
+	private OrgNode getNodeByName(String name) throws OrgNodeNotFoundException {
+		Cursor cursor = resolver.query(OrgData.CONTENT_URI, OrgData.DEFAULT_COLUMNS, OrgData.NAME + "=?",
+				new String[] { name }, null);
+		OrgNode node = new OrgNode(cursor);
+		cursor.close();
+		return node;
+	}
+	
 	public void testGetFilesFromIndex() {
 		HashMap<String,String> files = OrgFileParser.getFilesFromIndex(SimpleOrgFiles.indexFile);
 		
@@ -174,7 +235,7 @@ public class OrgFileParserTest extends ProviderTestCase2<OrgProvider> {
 	 * Tests for bug when a *emphasised* word begins a line. The parser could
 	 * mistakenly parse it as new OrgNode.
 	 */
-	public void testParseFileWithEmphasisNode() {
+	public void testParseFileWithEmphasisNode() throws IOException {
 		InputStream is = new ByteArrayInputStream(OrgFileWithEmphasisedNode.orgFile.getBytes());
 		BufferedReader breader = new BufferedReader(new InputStreamReader(is));
 		OrgFile orgFile = new OrgFile("new file", "file alias", "");
@@ -188,7 +249,7 @@ public class OrgFileParserTest extends ProviderTestCase2<OrgProvider> {
 	 * Tests for bug causing crash when lines containing '*' followed by
 	 * newline.
 	 */
-	public void testParseFileWithStarNewline() {
+	public void testParseFileWithStarNewline() throws IOException {
 		InputStream is = new ByteArrayInputStream(OrgFileWithStarNewlineNode.orgFile.getBytes());
 		BufferedReader breader = new BufferedReader(new InputStreamReader(is));
 		OrgFile orgFile = new OrgFile("new file", "file alias", "");
@@ -197,4 +258,138 @@ public class OrgFileParserTest extends ProviderTestCase2<OrgProvider> {
 		assertEquals(OrgFileWithStarNewlineNode.numberOfHeadings, db.fastInsertNodeCalls);
 		assertTrue(db.fastInsertNodePayloadCalls >= 1);
 	}
+	public void testParseCountsChildrenAndDescendants() throws IOException, OrgNodeNotFoundException {
+		final String orgFileContents = "* a\n** b\n*** c\n** d\n* e";
+		InputStream is = new ByteArrayInputStream(orgFileContents.getBytes());
+		BufferedReader breader = new BufferedReader(new InputStreamReader(is));
+		OrgFile orgFile = new OrgFile("new file", "file alias", "");
+		parser.parse(orgFile, breader);
+		
+		OrgNode fileNode = new OrgNode(orgFile.nodeId, resolver);
+		assertEquals(2, fileNode.childCount);
+		assertEquals(5, fileNode.descendantCount);
+		
+		OrgNode a = fileNode.getChild("a", resolver);
+		assertEquals(2, a.childCount);
+		assertEquals(3, a.descendantCount);
+		assertEquals(0, a.getChild("d", resolver).childCount);
+	}
+	
+	public void testParseUpdatesCountsOfExistingNodes() throws IOException, OrgNodeNotFoundException {
+		OrgFile orgFile = new OrgFile("new file", "file alias", "");
+		parser.parse(orgFile, new BufferedReader(new InputStreamReader(
+				new ByteArrayInputStream("* a\n** b\n** c".getBytes()))));
+		parser.parse(orgFile, new BufferedReader(new InputStreamReader(
+				new ByteArrayInputStream("* a\n** b".getBytes()))));
+		
+		OrgNode fileNode = new OrgNode(orgFile.nodeId, resolver);
+		assertEquals(1, fileNode.childCount);
+		assertEquals(2, fileNode.descendantCount);
+		assertEquals(1, fileNode.getChild("a", resolver).childCount);
+	}
+	
+	public void testParseStoresNodeTags() throws IOException {
+		final String orgFileContents = "* a :work:\n** b :home:\n* c :homework:";
+		OrgFile orgFile = new OrgFile("new file", "file alias", "");
+		parser.parse(orgFile, new BufferedReader(new InputStreamReader(
+				new ByteArrayInputStream(orgFileContents.getBytes()))));
+		
+		HashMap<String, Integer> tagCounts = db.getTagCounts();
+		assertEquals(Integer.valueOf(2), tagCounts.get("work"));
+		assertEquals(Integer.valueOf(1), tagCounts.get("home"));
+		assertEquals(Integer.valueOf(1), tagCounts.get("homework"));
+		
+		Cursor cursor = resolver.query(OrgData.CONTENT_URI,
+				new String[] { OrgData.NAME }, OrgData.buildTagSelection(1),
+				new String[] { "home" }, null);
+		assertEquals(1, cursor.getCount());
+		cursor.moveToFirst();
+		assertEquals("b", cursor.getString(0));
+		cursor.close();
+	}
+	
+	public void testParseStoresDates() throws IOException {
+		final String orgFileContents = "* a\nSCHEDULED: <2013-05-01 Wed>\n* b\nsome text";
+		OrgFile orgFile = new OrgFile("new file", "file alias", "");
+		parser.parse(orgFile, new BufferedReader(new InputStreamReader(
+				new ByteArrayInputStream(orgFileContents.getBytes()))));
+		
+		Cursor cursor = resolver.query(OrgData.CONTENT_URI, new String[] {
+				OrgData.SCHEDULED, OrgData.DEADLINE }, OrgData.NAME + "=?",
+				new String[] { "a" }, null);
+		assertTrue(cursor.moveToFirst());
+		assertEquals(new OrgNodeDate("2013-05-01 Wed").beginTime, cursor.getLong(0));
+		assertTrue(cursor.isNull(1));
+		cursor.close();
+		
+		cursor = resolver.query(OrgData.CONTENT_URI,
+				new String[] { OrgData.SCHEDULED }, OrgData.NAME + "=?",
+				new String[] { "b" }, null);
+		assertTrue(cursor.moveToFirst());
+		assertTrue(cursor.isNull(0));
+		cursor.close();
+	}
+	
+	public void testParseRollsBackIncrementalParseOnError() throws IOException, OrgNodeNotFoundException {
+		final String filename = "GTD.org";
+		parseFile(new OrgFile(filename, "file alias", "old checksum"), SimpleOrgFiles.orgFile);
+		OrgNode childNode = getNodeByName(SimpleOrgFiles.orgFileChildHeading);
+		
+		BufferedReader failingReader = new BufferedReader(new InputStreamReader(
+				new ByteArrayInputStream(new byte[0]))) {
+			private int lines = 0;
+			
+			@Override
+			public String readLine() throws IOException {
+				if (lines++ < 2)
+					return "* added heading " + lines;
+				throw new IOException("Connection lost");
+			}
+		};
+		try {
+			parser.parse(new OrgFile(filename, "file alias", "new checksum"),
+					failingReader);
+			fail("The read error should be passed on");
+		} catch (IOException e) {}
+		
+		assertEquals(childNode.id, getNodeByName(SimpleOrgFiles.orgFileChildHeading).id);
+		Cursor cursor = resolver.query(OrgData.CONTENT_URI, OrgData.DEFAULT_COLUMNS,
+				OrgData.NAME + " LIKE ?", new String[] { "added heading%" }, null);
+		assertEquals(0, cursor.getCount());
+		cursor.close();
+		assertEquals("old checksum", OrgProviderUtils.getFileChecksums(resolver).get(filename));
+	}
+	
+	public void testParseStoresChecksumAfterParse() throws IOException {
+		final String filename = "new file";
+		BufferedReader failingReader = new BufferedReader(new InputStreamReader(
+				new ByteArrayInputStream(new byte[0]))) {
+			@Override
+			public String readLine() throws IOException {
+				throw new IOException("Connection lost");
+			}
+		};
+		try {
+			parser.parse(new OrgFile(filename, "file alias", "checksum"), failingReader);
+			fail("The read error should be passed on");
+		} catch (IOException e) {}
+		assertEquals("", OrgProviderUtils.getFileChecksums(resolver).get(filename));
+		
+		parseFile(new OrgFile(filename, "file alias", "checksum"), SimpleOrgFiles.orgFile);
+		assertEquals("checksum", OrgProviderUtils.getFileChecksums(resolver).get(filename));
+	}
+	
+	public void testParseStoresOrgIds() throws IOException {
+		final String orgFileContents = "* a\n:PROPERTIES:\n:ID: abc-123\n:END:\n* b\nsome text";
+		OrgFile orgFile = new OrgFile("new file", "file alias", "");
+		parser.parse(orgFile, new BufferedReader(new InputStreamReader(
+				new ByteArrayInputStream(orgFileContents.getBytes()))));
+		
+		Cursor cursor = resolver.query(OrgData.CONTENT_URI, new String[] { OrgData.NAME },
+				OrgData.ORG_ID + "=?", new String[] { "abc-123" }, null);
+		assertEquals(1, cursor.getCount());
+		cursor.moveToFirst();
+		assertEquals("a", cursor.getString(0));
+		cursor.close();
+	}
 }
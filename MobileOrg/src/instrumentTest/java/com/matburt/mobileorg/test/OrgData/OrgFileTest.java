@@ -2,6 +2,7 @@ package com.matburt.mobileorg.test.OrgData;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 
@@ -99,7 +100,7 @@ public class OrgFileTest extends ProviderTestCase2<OrgProvider> {
 		OrgTestUtils.cleanupParentScenario(resolver);
 	}
 
-	public void testFileToStringSimple() throws OrgFileNotFoundException {
+	public void testFileToStringSimple() throws IOException, OrgFileNotFoundException {
 		final String filename = "filename";
 		InputStream is = new ByteArrayInputStream(SimpleOrgFiles.orgFile.getBytes());
 		BufferedReader breader = new BufferedReader(new InputStreamReader(is));
@@ -115,6 +116,22 @@ public class OrgFileTest extends ProviderTestCase2<OrgProvider> {
 		assertEquals(SimpleOrgFiles.orgFile.trim(), fileString.trim());
 	}
 	
+	public void testFileToStringNested() throws IOException, OrgFileNotFoundException {
+		final String filename = "filename";
+		final String orgFileContents = "* a\n** b\n*** c\n** d\n* e";
+		InputStream is = new ByteArrayInputStream(orgFileContents.getBytes());
+		BufferedReader breader = new BufferedReader(new InputStreamReader(is));
+		OrgFile orgFile = new OrgFile(filename, "file alias", "");
+		
+		OrgDatabase db = new OrgDatabaseStub(getMockContext());
+		OrgFileParser parser = new OrgFileParser(db, resolver);
+		parser.parse(orgFile, breader);
+		db.close();
+
+		OrgFile file = new OrgFile(filename, resolver);
+		assertEquals(orgFileContents, file.toString(resolver).trim());
+	}
+	
 	public void testCreateFile () {
 		final String fileAlias = "test name";
 		OrgFile file = OrgProviderUtils.getOrCreateFile("test file", fileAlias, resolver);
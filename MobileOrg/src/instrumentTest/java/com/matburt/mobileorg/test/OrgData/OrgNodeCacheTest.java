@@ -0,0 +1,62 @@
+package com.matburt.mobileorg.test.OrgData;
+
+import java.util.ArrayList;
+
+import android.content.ContentValues;
+import android.test.AndroidTestCase;
+
+import com.matburt.mobileorg.OrgData.OrgContract.OrgData;
+import com.matburt.mobileorg.OrgData.OrgNode;
+import com.matburt.mobileorg.OrgData.OrgNodeCache;
+
+public class OrgNodeCacheTest extends AndroidTestCase {
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		OrgNodeCache.clear();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		OrgNodeCache.clear();
+		super.tearDown();
+	}
+
+	private static OrgNode createNode(long id, long parentId, String name) {
+		OrgNode node = new OrgNode();
+		node.id = id;
+		node.parentId = parentId;
+		node.name = name;
+		return node;
+	}
+
+	public void testPutNode() {
+		long generation = OrgNodeCache.getGeneration();
+		OrgNodeCache.putNode(createNode(1, -1, "Node"), generation);
+		assertEquals("Node", OrgNodeCache.getNode(1).name);
+	}
+
+	public void testPutNodeDroppedAfterInvalidation() {
+		// A reader queries the node, a writer changes it before it is put
+		long generation = OrgNodeCache.getGeneration();
+		OrgNode staleNode = createNode(1, -1, "Old name");
+		ContentValues values = new ContentValues();
+		values.put(OrgData.NAME, "New name");
+		OrgNodeCache.invalidateNode(1, values);
+
+		OrgNodeCache.putNode(staleNode, generation);
+		assertNull(OrgNodeCache.getNode(1));
+	}
+
+	public void testPutChildrenDroppedAfterInvalidation() {
+		long generation = OrgNodeCache.getGeneration();
+		ArrayList<OrgNode> children = new ArrayList<OrgNode>();
+		children.add(createNode(2, 1, "Child"));
+		OrgNodeCache.invalidateNode(3, null);
+
+		OrgNodeCache.putChildren(1, children, generation);
+		assertNull(OrgNodeCache.getChildren(1));
+		assertNull(OrgNodeCache.getNode(2));
+	}
+}
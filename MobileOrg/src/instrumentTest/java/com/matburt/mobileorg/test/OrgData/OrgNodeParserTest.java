@@ -150,4 +150,35 @@ public class OrgNodeParserTest extends AndroidTestCase {
 		
 		assertEquals(expectedTitle, parsedNode.name);
 	}
+	
+	public void testParseLineIntoNodeHabitWithTags() {
+		final String testHeading = "** TODO [#B] Exercise :habit:health: !*";
+		ArrayList<String> todos = new ArrayList<String>();
+		todos.add("TODO");
+		OrgNodeParser orgNodeParser = new OrgNodeParser(todos);
+		OrgNode parsedNode = orgNodeParser.parseLine(testHeading, 2);
+		
+		assertEquals("TODO", parsedNode.todo);
+		assertEquals("B", parsedNode.priority);
+		assertEquals("Exercise", parsedNode.name);
+		assertEquals("habit:health", parsedNode.tags);
+	}
+	
+	public void testParseLineIntoNodeTodoPrefixOfWord() {
+		final String testHeading = "* TODOS are not keywords";
+		ArrayList<String> todos = new ArrayList<String>();
+		todos.add("TODO");
+		OrgNodeParser orgNodeParser = new OrgNodeParser(todos);
+		OrgNode parsedNode = orgNodeParser.parseLine(testHeading, 1);
+		
+		assertEquals("", parsedNode.todo);
+		assertEquals("TODOS are not keywords", parsedNode.name);
+	}
+	
+	public void testNumberOfStars() {
+		assertEquals(3, OrgNodeParser.numberOfStars("*** heading"));
+		assertEquals(0, OrgNodeParser.numberOfStars("***"));
+		assertEquals(0, OrgNodeParser.numberOfStars("**bold** text"));
+		assertEquals(0, OrgNodeParser.numberOfStars("text"));
+	}
 }
@@ -227,4 +227,92 @@ public class OrgNodeTest extends ProviderTestCase2<OrgProvider> {
 		assertEquals(OrgTestUtils.setupParentScenarioChild2ChildOlpId, olp.trim());
 	}
 	
+	public void testCachedNodeUpdatedOnWrite() throws OrgNodeNotFoundException {
+		OrgNode node = OrgTestUtils.getDefaultOrgNode();
+		node.write(resolver);
+		new OrgNode(node.id, resolver);
+
+		node.todo = "DONE";
+		node.write(resolver);
+
+		OrgNode cachedNode = new OrgNode(node.id, resolver);
+		assertEquals("DONE", cachedNode.todo);
+	}
+
+	public void testCachedChildrenUpdatedOnAdd() throws OrgNodeNotFoundException {
+		OrgNode child2Child = OrgTestUtils.setupParentScenario(resolver);
+		OrgNode child2 = child2Child.getParent(resolver);
+		assertEquals(1, child2.getChildren(resolver).size());
+
+		OrgNode newChild = new OrgNode();
+		newChild.name = "newChild";
+		newChild.parentId = child2.id;
+		newChild.fileId = child2.fileId;
+		newChild.write(resolver);
+
+		assertEquals(2, child2.getChildren(resolver).size());
+		assertTrue(child2.hasChildren(resolver));
+	}
+	
+	public void testCountsMaintainedOnWrite() throws OrgNodeNotFoundException {
+		OrgNode child2Child = OrgTestUtils.setupParentScenario(resolver);
+		OrgNode child2 = child2Child.getParent(resolver);
+		OrgNode fileNode = child2.getParent(resolver);
+		assertEquals(2, fileNode.childCount);
+		assertEquals(3, fileNode.descendantCount);
+		assertEquals(1, child2.childCount);
+		
+		child2Child.parentId = fileNode.id;
+		child2Child.write(resolver);
+		assertEquals(3, new OrgNode(fileNode.id, resolver).childCount);
+		assertEquals(0, new OrgNode(child2.id, resolver).childCount);
+		
+		child2Child.deleteNode(resolver);
+		fileNode = new OrgNode(fileNode.id, resolver);
+		assertEquals(2, fileNode.childCount);
+		assertEquals(2, fileNode.descendantCount);
+		assertFalse(OrgNode.hasChildren(child2.id, resolver));
+	}
+	
+	public void testArchiveNodeRemovesDescendants() throws OrgNodeNotFoundException {
+		OrgNode child2Child = OrgTestUtils.setupParentScenario(resolver);
+		OrgNode child2 = child2Child.getParent(resolver);
+		child2.archiveNode(resolver);
+
+		try {
+			new OrgNode(child2Child.id, resolver);
+			fail("Descendant should not exist");
+		} catch (OrgNodeNotFoundException e) {}
+	}
+	
+	public void testGetDescendantsAfterMove() throws OrgNodeNotFoundException {
+		OrgNode child2Child = OrgTestUtils.setupParentScenario(resolver);
+		OrgNode child2 = child2Child.getParent(resolver);
+		OrgNode child = child2.getParent(resolver).getChild("child", resolver);
+		
+		child2.parentId = child.id;
+		child2.write(resolver);
+		
+		child = new OrgNode(child.id, resolver);
+		ArrayList<OrgNode> descendants = OrgProviderUtils.getOrgNodeDescendants(child, resolver);
+		assertEquals(2, descendants.size());
+		assertEquals(child2.id, descendants.get(0).id);
+		assertEquals(child2Child.id, descendants.get(1).id);
+		
+		ArrayList<OrgNode> path = OrgProviderUtils.getOrgNodePathFromTopLevel(child2Child.id, resolver);
+		assertEquals(4, path.size());
+		assertEquals(child.id, path.get(1).id);
+	}
+	
+	public void testChildrenLoadPayloadLazily() {
+		OrgNode child2Child = OrgTestUtils.setupParentScenario(resolver);
+		child2Child.setPayload("payload of child");
+		child2Child.write(resolver);
+		
+		ArrayList<OrgNode> children = OrgProviderUtils.getOrgNodeChildren(
+				child2Child.parentId, resolver);
+		assertEquals(1, children.size());
+		assertEquals("payload of child", children.get(0).getPayload());
+		assertTrue(child2Child.equals(children.get(0)));
+	}
 }
@@ -0,0 +1,100 @@
+package com.matburt.mobileorg.test.OrgData;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+
+import com.matburt.mobileorg.OrgData.OrgContract.OrgData;
+import com.matburt.mobileorg.OrgData.OrgContract.Search;
+import com.matburt.mobileorg.OrgData.OrgFile;
+import com.matburt.mobileorg.OrgData.OrgFileParser;
+import com.matburt.mobileorg.OrgData.OrgProvider;
+import com.matburt.mobileorg.OrgData.OrgProviderUtils;
+import com.matburt.mobileorg.test.util.OrgTestFiles.SimpleOrgFiles;
+
+public class OrgProviderSearchTest extends ProviderTestCase2<OrgProvider> {
+
+	private MockContentResolver resolver;
+	private OrgDatabaseStub db;
+	private OrgFileParser parser;
+
+	public OrgProviderSearchTest() {
+		super(OrgProvider.class, OrgProvider.class.getName());
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		this.resolver = getMockContentResolver();
+		this.db = new OrgDatabaseStub(getMockContext());
+		this.parser = new OrgFileParser(db, resolver);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		this.db.close();
+		super.tearDown();
+	}
+
+	public void testSearchMatchesHeadingsAndPayload() throws IOException {
+		parseFile(new OrgFile("GTD.org", "file alias", ""), SimpleOrgFiles.orgFile
+				+ "\nsome payload text");
+
+		Cursor cursor = OrgProviderUtils.search("chil", resolver);
+		assertEquals(1, cursor.getCount());
+		cursor.close();
+
+		cursor = OrgProviderUtils.search("payload", resolver);
+		assertEquals(1, cursor.getCount());
+		cursor.close();
+
+		cursor = OrgProviderUtils.search("heading", resolver);
+		assertEquals(2, cursor.getCount());
+		cursor.close();
+	}
+
+	public void testSearchRanksHeadingMatchesFirst() throws IOException {
+		parseFile(new OrgFile("GTD.org", "file alias", ""),
+				"* first\nreport report report\n* report");
+
+		Cursor cursor = OrgProviderUtils.search("report", resolver);
+		assertEquals(2, cursor.getCount());
+		assertTrue(cursor.moveToFirst());
+		assertEquals("report", cursor.getString(cursor.getColumnIndexOrThrow(OrgData.NAME)));
+		cursor.close();
+	}
+
+	public void testSearchRanksNodesWithMoreMatchesFirst() throws IOException {
+		parseFile(new OrgFile("GTD.org", "file alias", ""),
+				"* first\nreport\n* second\nreport, report and report");
+
+		Cursor cursor = OrgProviderUtils.search("report", resolver);
+		assertEquals(2, cursor.getCount());
+		assertTrue(cursor.moveToFirst());
+		assertEquals("second", cursor.getString(cursor.getColumnIndexOrThrow(OrgData.NAME)));
+		cursor.close();
+	}
+
+	public void testSearchWithoutWordsReturnsNothing() throws IOException {
+		parseFile(new OrgFile("GTD.org", "file alias", ""), SimpleOrgFiles.orgFile);
+
+		String[] projection = { OrgData.ID, OrgData.NAME };
+		Cursor cursor = resolver.query(Search.buildSearchUri("?!"), projection,
+				null, null, null);
+		assertEquals(0, cursor.getCount());
+		assertEquals(2, cursor.getColumnCount());
+		cursor.close();
+	}
+
+	private void parseFile(OrgFile orgFile, String contents) throws IOException {
+		InputStream is = new ByteArrayInputStream(contents.getBytes());
+		BufferedReader breader = new BufferedReader(new InputStreamReader(is));
+		parser.parse(orgFile, breader);
+	}
+}
@@ -0,0 +1,89 @@
+package com.matburt.mobileorg.test.OrgData;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentResolver;
+import android.test.AndroidTestCase;
+
+import com.matburt.mobileorg.OrgData.OrgWriteQueue;
+
+public class OrgWriteQueueTest extends AndroidTestCase {
+
+	private static class CountingWrite implements OrgWriteQueue.Write {
+		int applyCount = 0;
+
+		@Override
+		public void apply(ContentResolver resolver) {
+			applyCount++;
+		}
+	}
+
+	private static class FailingWrite extends CountingWrite {
+		@Override
+		public void apply(ContentResolver resolver) {
+			super.apply(resolver);
+			throw new IllegalStateException("Write failed");
+		}
+	}
+
+	/**
+	 * Holds the queue until released, so the writes posted meanwhile are
+	 * applied together.
+	 */
+	private static class BlockingWrite extends CountingWrite {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch released = new CountDownLatch(1);
+
+		@Override
+		public void apply(ContentResolver resolver) {
+			super.apply(resolver);
+			started.countDown();
+			try {
+				released.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public void testWritesAreApplied() {
+		CountingWrite write = new CountingWrite();
+		OrgWriteQueue.post(getContext(), write);
+		OrgWriteQueue.waitForWrites();
+		assertEquals(1, write.applyCount);
+	}
+
+	public void testFailedWriteIsRetriedAlone() throws InterruptedException {
+		BlockingWrite blockingWrite = new BlockingWrite();
+		OrgWriteQueue.post(getContext(), blockingWrite);
+		assertTrue(blockingWrite.started.await(5, TimeUnit.SECONDS));
+
+		CountingWrite first = new CountingWrite();
+		FailingWrite failing = new FailingWrite();
+		CountingWrite last = new CountingWrite();
+		OrgWriteQueue.post(getContext(), first);
+		OrgWriteQueue.post(getContext(), failing);
+		OrgWriteQueue.post(getContext(), last);
+		blockingWrite.released.countDown();
+		OrgWriteQueue.waitForWrites();
+
+		assertEquals(1, blockingWrite.applyCount);
+		// Applied in one batch, which is rolled back, then one by one
+		assertEquals(2, first.applyCount);
+		assertEquals(2, failing.applyCount);
+		assertEquals(2, last.applyCount);
+	}
+
+	public void testWritesAfterFailureAreApplied() {
+		FailingWrite failing = new FailingWrite();
+		OrgWriteQueue.post(getContext(), failing);
+		OrgWriteQueue.waitForWrites();
+
+		CountingWrite write = new CountingWrite();
+		OrgWriteQueue.post(getContext(), write);
+		OrgWriteQueue.waitForWrites();
+		assertEquals(1, failing.applyCount);
+		assertEquals(1, write.applyCount);
+	}
+}
@@ -11,6 +11,7 @@ import java.util.HashMap;
 import javax.net.ssl.SSLHandshakeException;
 
 import com.matburt.mobileorg.Synchronizers.SynchronizerInterface;
+import com.matburt.mobileorg.util.FileUtils;
 
 public class SynchronizerStub implements SynchronizerInterface {
 
@@ -33,16 +34,28 @@ public class SynchronizerStub implements SynchronizerInterface {
 		addFile(filename, contents);
 	}
 
+	@Override
+	public void putRemoteFile(String filename, InputStream contents)
+			throws IOException {
+		putRemoteFile(filename, FileUtils.read(new BufferedReader(
+				new InputStreamReader(contents))));
+	}
+
 	@Override
 	public BufferedReader getRemoteFile(String filename) throws IOException,
 			CertificateException, SSLHandshakeException {
+		return new BufferedReader(new InputStreamReader(getRemoteFileStream(filename)));
+	}
+
+	@Override
+	public InputStream getRemoteFileStream(String filename) throws IOException,
+			CertificateException, SSLHandshakeException {
 		getRemoteFileCount++;
 		String contents = files.get(filename);
 		if(contents == null)
 			throw new IOException("File \"" + filename + "\" not found");
 		
-		InputStream is = new ByteArrayInputStream(contents.getBytes());
-		return new BufferedReader(new InputStreamReader(is));
+		return new ByteArrayInputStream(contents.getBytes());
 	}
 
 	@Override
@@ -1,6 +1,7 @@
 package com.matburt.mobileorg.test.Synchronizers;
 
 import java.io.IOException;
+import java.security.MessageDigest;
 import java.security.cert.CertificateException;
 
 import javax.net.ssl.SSLHandshakeException;
@@ -16,6 +17,7 @@ import com.matburt.mobileorg.OrgData.OrgNode;
 import com.matburt.mobileorg.OrgData.OrgProvider;
 import com.matburt.mobileorg.Synchronizers.Synchronizer;
 import com.matburt.mobileorg.test.util.OrgTestFiles.SimpleOrgFiles;
+import com.matburt.mobileorg.util.FileUtils;
 
 public class SynchronizerTest extends ProviderTestCase2<OrgProvider> {
 
@@ -56,6 +58,49 @@ public class SynchronizerTest extends ProviderTestCase2<OrgProvider> {
 		assertEquals(1, parserStub.filesParsed.size());
 	}
 	
+	public void testPullWithMatchingChecksum() throws Exception {
+		final String checksums = "25aade750f6b60aa1df155fcbb357191  index.org\n"
+				+ sha1(SimpleOrgFiles.orgFile) + "  GTD.org";
+		synchronizerStub.addFile("index.org", SimpleOrgFiles.indexFile);
+		synchronizerStub.addFile("checksums.dat", checksums);
+		synchronizerStub.addFile("GTD.org", SimpleOrgFiles.orgFile);
+		synchronizer.pull(parserStub);
+		assertEquals(1, parserStub.filesParsed.size());
+		// checksums.dat, index.org and GTD.org once
+		assertEquals(3, synchronizerStub.getRemoteFileCount);
+	}
+	
+	public void testPullRetriesOnChecksumMismatch() throws Exception {
+		synchronizerStub.addFile("index.org", SimpleOrgFiles.indexFile);
+		synchronizerStub.addFile("checksums.dat", SimpleOrgFiles.checksumsFile);
+		synchronizerStub.addFile("GTD.org", SimpleOrgFiles.orgFile + "\ncorrupt");
+		synchronizer.pull(parserStub);
+		assertEquals(1, parserStub.filesParsed.size());
+		assertTrue(synchronizerStub.getRemoteFileCount > 3);
+	}
+	
+	public void testPullSkipsUnchangedContent() throws Exception {
+		OrgFile localFile = new OrgFile("GTD.org", "GTD.org", "old checksum");
+		localFile.contentDigest = sha1(SimpleOrgFiles.orgFile);
+		localFile.write(resolver);
+		final String checksums = "25aade750f6b60aa1df155fcbb357191  index.org\n"
+				+ "0123456789012345678901234567890123456789  GTD.org";
+		synchronizerStub.addFile("index.org", SimpleOrgFiles.indexFile);
+		synchronizerStub.addFile("checksums.dat", checksums);
+		synchronizerStub.addFile("GTD.org", SimpleOrgFiles.orgFile);
+		synchronizer.pull(parserStub);
+		assertEquals(0, parserStub.filesParsed.size());
+		// No retries although the checksum doesn't match the content
+		assertEquals(3, synchronizerStub.getRemoteFileCount);
+		assertEquals("0123456789012345678901234567890123456789",
+				new OrgFile("GTD.org", resolver).checksum);
+	}
+	
+	private static String sha1(String contents) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		return FileUtils.toHex(digest.digest(contents.getBytes()));
+	}
+	
 	public void testPullWithMissingIndex() throws CertificateException, Exception {
 		synchronizerStub.addFile("checksums.dat", SimpleOrgFiles.checksumsFile);
 		synchronizerStub.addFile("GTD.org", SimpleOrgFiles.orgFile);
@@ -120,4 +165,21 @@ public class SynchronizerTest extends ProviderTestCase2<OrgProvider> {
 		// TODO Make actual test out of this
 		//assertEquals(edit.toString(), synchronizerStub.files.get(Synchronizer.CAPTURE_FILE));
 	}
+	
+	public void testPushKeepsRemoteCaptures() throws Exception {
+		synchronizerStub.addFile(Synchronizer.CAPTURE_FILE, "* Old capture\n");
+		OrgFile file = new OrgFile(Synchronizer.CAPTURE_FILE, Synchronizer.CAPTURE_FILE, "");
+		file.write(resolver);
+		
+		OrgNode node = new OrgNode();
+		node.name = "New capture";
+		node.setFilename(Synchronizer.CAPTURE_FILE, resolver);
+		node.write(resolver);
+		synchronizer.pushCaptures();
+		
+		String remoteContents = synchronizerStub.files.get(Synchronizer.CAPTURE_FILE);
+		assertTrue(remoteContents.startsWith("* Old capture\n\n"));
+		assertTrue(remoteContents.contains("New capture"));
+		assertEquals(1, synchronizerStub.putRemoteFileCount);
+	}
 }
@@ -1,19 +1,24 @@
 package com.matburt.mobileorg.Gui.Agenda;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
+import java.util.Set;
+
+import android.net.Uri;
 import android.os.Bundle;
 
 import com.actionbarsherlock.app.SherlockFragmentActivity;
 import com.matburt.mobileorg.R;
-import com.matburt.mobileorg.Synchronizers.Synchronizer;
+import com.matburt.mobileorg.OrgData.OrgChangeNotifier;
 
 public class AgendaActivity extends SherlockFragmentActivity {
 	public static final String POSITION = "position";
 	private int position;
-	private SynchServiceReceiver syncReceiver;
+	
+	private final OrgChangeNotifier.OnChangeListener changeListener = new OrgChangeNotifier.OnChangeListener() {
+		@Override
+		public void onChange(Set<Uri> changedUris) {
+			refresh();
+		}
+	};
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -22,14 +27,12 @@ public class AgendaActivity extends SherlockFragmentActivity {
 		
 		position = getIntent().getIntExtra(POSITION, 0);
 		
-		syncReceiver = new SynchServiceReceiver();
-		registerReceiver(syncReceiver, new IntentFilter(
-				Synchronizer.SYNC_UPDATE));
+		OrgChangeNotifier.registerListener(changeListener);
 	}
 
 	@Override
 	protected void onDestroy() {
-		unregisterReceiver(syncReceiver);
+		OrgChangeNotifier.unregisterListener(changeListener);
 		super.onDestroy();
 	}
 
@@ -46,14 +49,4 @@ public class AgendaActivity extends SherlockFragmentActivity {
 		agendaFragment.agendaPos = position;
 		agendaFragment.showBlockAgenda(position);
 	}
-	
-	private class SynchServiceReceiver extends BroadcastReceiver {
-		@Override
-		public void onReceive(Context context, Intent intent) {
-			boolean syncDone = intent.getBooleanExtra(Synchronizer.SYNC_DONE, false);
-			
-			if (syncDone)
-				refresh();
-		}
-	}
 }
@@ -1,6 +1,5 @@
 package com.matburt.mobileorg.Gui.Agenda;
 
-import android.database.sqlite.SQLiteDatabase;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -15,6 +14,7 @@ import com.commonsware.cwac.merge.MergeAdapter;
 import com.matburt.mobileorg.R;
 import com.matburt.mobileorg.Gui.Outline.OutlineActionMode;
 import com.matburt.mobileorg.Gui.Outline.OutlineAdapter;
+import com.matburt.mobileorg.OrgData.MobileOrgApplication;
 import com.matburt.mobileorg.OrgData.OrgDatabase;
 
 public class AgendaFragment extends SherlockFragment {
@@ -22,13 +22,13 @@ public class AgendaFragment extends SherlockFragment {
 	public int agendaPos = 0;
 	private ListView agendaList;
 	private MergeAdapter mergeAdapter;
-	private SQLiteDatabase db;
+	private OrgDatabase db;
 	
 	@Override
 	public View onCreateView(LayoutInflater inflater, ViewGroup container,
 			Bundle savedInstanceState) {
 		super.onCreateView(inflater, container, savedInstanceState);
-		this.db = new OrgDatabase(getActivity()).getReadableDatabase();
+		this.db = MobileOrgApplication.acquireDatabase(getActivity().getApplicationContext());
 
 		this.agendaList = new ListView(getActivity());
 		this.agendaList.setOnItemClickListener(agendaClickListener);
@@ -45,7 +45,7 @@ public class AgendaFragment extends SherlockFragment {
 	@Override
 	public void onDestroyView() {
 		super.onDestroyView();
-		db.close();
+		MobileOrgApplication.releaseDatabase(db);
 	}
 	
 	public void showBlockAgenda(int agendaPos) {
@@ -70,7 +70,7 @@ public class AgendaFragment extends SherlockFragment {
 
 		OutlineAdapter adapter = new OutlineAdapter(getActivity());
 		adapter.setLevelIndentation(false);
-		adapter.setState(query.getNodes(db, getActivity()));
+		adapter.setState(query.getNodes(db.getReadableDatabase(), getActivity()));
 		mergeAdapter.addAdapter(adapter);
 	}
 	
@@ -14,11 +14,7 @@ import com.matburt.mobileorg.OrgData.OrgContract.OrgData;
 import com.matburt.mobileorg.OrgData.OrgDatabase.Tables;
 import com.matburt.mobileorg.OrgData.OrgFile;
 import com.matburt.mobileorg.OrgData.OrgProviderUtils;
-import com.matburt.mobileorg.OrgData.OrgNode;
-import com.matburt.mobileorg.OrgData.OrgNodeDate;
-import com.matburt.mobileorg.OrgData.OrgNodePayload;
 import com.matburt.mobileorg.util.OrgFileNotFoundException;
-import com.matburt.mobileorg.util.OrgNodeNotFoundException;
 import com.matburt.mobileorg.util.SelectionBuilder;
 
 public class OrgQueryBuilder implements Serializable {
@@ -50,67 +46,87 @@ public class OrgQueryBuilder implements Serializable {
 	 * Returns an array of DB IDs for the nodes matching the query.
 	 */
 	public long[] getNodes(SQLiteDatabase db, Context context) {
-		long[] result = null;
-		int i = 0;
-		ContentResolver resolver = context.getContentResolver();
-		Cursor cursor = getQuery(context).query(db, OrgData.DEFAULT_COLUMNS, OrgData.DEFAULT_SORT);
+		SelectionBuilder builder = getQuery(context);
+		if (type == Type.AGENDA)
+			addAgendaSelection(builder, context);
+		
+		Cursor cursor = builder.query(db, new String[] { OrgData.ID },
+				OrgData.DEFAULT_SORT);
 		try {
-			result = new long[cursor.getCount()];
-			cursor.moveToFirst();
-			switch (type) {
-			case ALL:
-				while(cursor.isAfterLast() == false) {
-					long id = cursor.getLong(cursor.getColumnIndex(OrgData.ID));
-					result[i++] = id;
-					cursor.moveToNext();
-				}
-				break;
-			case AGENDA:
-				int nDays;
-				Calendar today, start, next, end, warn;
-
-				today = Calendar.getInstance();
-				today.set(Calendar.HOUR_OF_DAY, 0);
-				today.set(Calendar.MINUTE, 0);
-				today.set(Calendar.SECOND, 0);
-				today.set(Calendar.MILLISECOND, 0);
-				start = (Calendar) today.clone();
-				if (span.equalsIgnoreCase("Month")) {
-					start.set(Calendar.DAY_OF_MONTH, 1);
-				} else if (span.equalsIgnoreCase("Year")) {
-					start.set(Calendar.DAY_OF_YEAR, 1);
-				}
-				nDays = Math.max(1, spanToNDays(start));
-				next = (Calendar) start.clone();
-				next.add(Calendar.DATE, 1);
-				end = (Calendar) start.clone();
-				end.add(Calendar.DATE, nDays);
-				warn = (Calendar) today.clone();
-				if (deadlineWarningDays != 0) {
-					warn.add(Calendar.DATE, deadlineWarningDays + 1);
-				}
-				while(cursor.isAfterLast() == false) {
-					long id = cursor.getLong(cursor.getColumnIndex(OrgData.ID));
-					try {
-						OrgNode node = new OrgNode(id, resolver);
-
-						if ((OrgProviderUtils.isTodoActive(node.todo, resolver)
-						     && (hasDate(node, start, end, warn)
-						         || (node.isHabit()
-						             && hasDate(node, start, next, next))))
-						    || hasDateInRange(node, start, end)) {
-							result[i++] = id;
-						}
-					} catch (OrgNodeNotFoundException e) {
-					}
-					cursor.moveToNext();
-				}
-				break;
-			}
+			long[] result = new long[cursor.getCount()];
+			int i = 0;
+			while (cursor.moveToNext())
+				result[i++] = cursor.getLong(0);
+			return result;
 		} finally {
 			cursor.close();
 		}
-		return Arrays.copyOf(result, i);
+	}
+	
+	/**
+	 * Selects the nodes that show up in the agenda of the span, using the
+	 * parsed date columns. These are nodes with an active todo that are
+	 * scheduled or due before the end of the span, or due within the
+	 * deadline warning period, or have a timestamp within the span. Nodes
+	 * with any date within the span show up regardless of their todo.
+	 */
+	private void addAgendaSelection(SelectionBuilder builder, Context context) {
+		Calendar today, start, end, warn;
+
+		today = Calendar.getInstance();
+		today.set(Calendar.HOUR_OF_DAY, 0);
+		today.set(Calendar.MINUTE, 0);
+		today.set(Calendar.SECOND, 0);
+		today.set(Calendar.MILLISECOND, 0);
+		start = (Calendar) today.clone();
+		if (span.equalsIgnoreCase("Month")) {
+			start.set(Calendar.DAY_OF_MONTH, 1);
+		} else if (span.equalsIgnoreCase("Year")) {
+			start.set(Calendar.DAY_OF_YEAR, 1);
+		}
+		int nDays = Math.max(1, spanToNDays(start));
+		end = (Calendar) start.clone();
+		end.add(Calendar.DATE, nDays);
+		warn = (Calendar) today.clone();
+		if (deadlineWarningDays != 0) {
+			warn.add(Calendar.DATE, deadlineWarningDays + 1);
+		}
+		
+		String startTime = Long.toString(start.getTimeInMillis());
+		String endTime = Long.toString(end.getTimeInMillis());
+		String warnTime = Long.toString(warn.getTimeInMillis());
+		
+		ArrayList<String> activeTodos = OrgProviderUtils.getActiveTodos(context
+				.getContentResolver());
+		ArrayList<String> args = new ArrayList<String>();
+		StringBuilder selection = new StringBuilder();
+		
+		selection.append("((").append(OrgData.TODO).append(" IS NULL OR ")
+				.append(OrgData.TODO).append("=''");
+		if (activeTodos.size() > 0) {
+			selection.append(" OR ").append(OrgData.TODO).append(" IN (");
+			for (int i = 0; i < activeTodos.size(); i++)
+				selection.append(i == 0 ? "?" : ",?");
+			selection.append(")");
+			args.addAll(activeTodos);
+		}
+		selection.append(") AND (")
+				.append(OrgData.SCHEDULED).append("<? OR ")
+				.append(OrgData.DEADLINE).append("<? OR (")
+				.append(OrgData.SCHEDULED).append(" IS NULL AND ")
+				.append(OrgData.DEADLINE).append("<?) OR (")
+				.append(OrgData.TIMESTAMP).append(">=? AND ")
+				.append(OrgData.TIMESTAMP).append("<?)))");
+		args.addAll(Arrays.asList(endTime, endTime, warnTime, startTime, endTime));
+		
+		for (String column : new String[] { OrgData.SCHEDULED, OrgData.DEADLINE, OrgData.TIMESTAMP }) {
+			selection.append(" OR (").append(column).append(">=? AND ")
+					.append(column).append("<?)");
+			args.add(startTime);
+			args.add(endTime);
+		}
+		
+		builder.where(selection.toString(), args.toArray(new String[args.size()]));
 	}
 
 	// http://stackoverflow.com/a/237204/165039
@@ -160,64 +176,6 @@ public class OrgQueryBuilder implements Serializable {
 		return 1;
 	}
 
-	private static OrgNodeDate getDate(String dateStr) {
-		try {
-			return new OrgNodeDate(dateStr);
-		} catch (IllegalArgumentException e) {
-			return null;
-		}
-	}
-
-	/**
-	 * Returns whether the node has a date matching the given criteria.
-	 * The criteria are somewhat complex:
-	 *
-	 * <ol>
-	 * <li>Scheduled dates must begin before <code>end</code>.
-	 * <li>Deadlines must either begin before <code>end</code>, or, if the node
-	 *     is unscheduled, the deadline must begin before <code>warn</code>.
-	 * <li>Timestamps must begin on or after <code>start</code> but before
-	 *     <code>begin</code>.
-	 * </ol>
-	 */
-	private static boolean hasDate(OrgNode node, Calendar start, Calendar end,
-	                               Calendar warn) {
-		OrgNodePayload payload = node.getOrgNodePayload();
-		long startTime = start.getTimeInMillis();
-		long endTime = end.getTimeInMillis();
-		long warnTime = warn.getTimeInMillis();
-		OrgNodeDate scheduled = getDate(payload.getScheduled());
-		OrgNodeDate deadline = getDate(payload.getDeadline());
-		OrgNodeDate timestamp = getDate(payload.getTimestamp());
-
-		return ((scheduled != null && scheduled.beginTime < endTime)
-		        || (deadline != null &&
-		            (deadline.beginTime < endTime
-		             || (scheduled == null && deadline.beginTime < warnTime)))
-		        || (timestamp != null && timestamp.beginTime >= startTime
-		            && timestamp.beginTime < endTime));
-	}
-
-	/**
-	 * Returns whether the node has a date in the half-open interval.
-	 */
-	private static boolean hasDateInRange(OrgNode node,
-	                                      Calendar start, Calendar end) {
-		OrgNodePayload payload = node.getOrgNodePayload();
-		long startTime = start.getTimeInMillis();
-		long endTime = end.getTimeInMillis();
-		OrgNodeDate scheduled = getDate(payload.getScheduled());
-		OrgNodeDate deadline = getDate(payload.getDeadline());
-		OrgNodeDate timestamp = getDate(payload.getTimestamp());
-
-		return ((scheduled != null && scheduled.beginTime >= startTime
-		         && scheduled.beginTime < endTime)
-		        || (deadline != null && deadline.beginTime >= startTime
-		            && deadline.beginTime < endTime)
-		        || (timestamp != null && timestamp.beginTime >= startTime
-		            && timestamp.beginTime < endTime));
-	}
-	
 	public SelectionBuilder getQuery(Context context) {
 		final SelectionBuilder builder = new SelectionBuilder();
 		builder.table(Tables.ORGDATA);
@@ -232,8 +190,8 @@ public class OrgQueryBuilder implements Serializable {
 			builder.where(getSelection(todos, OrgData.TODO));
 		
 		if(tags != null && tags.size() > 0)
-			builder.where(getLikeSelection(tags, OrgData.TAGS) + " OR "
-					+ getLikeSelection(tags, OrgData.TAGS_INHERITED));
+			builder.where(OrgData.buildTagSelection(tags.size()),
+					tags.toArray(new String[tags.size()]));
 		
 		if(priorities != null && priorities.size() > 0)
 			builder.where(getSelection(priorities, OrgData.PRIORITY));		
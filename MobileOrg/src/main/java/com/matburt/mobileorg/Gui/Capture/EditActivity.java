@@ -1,6 +1,7 @@
 package com.matburt.mobileorg.Gui.Capture;
 
 import android.app.AlertDialog;
+import android.content.ContentResolver;
 import android.content.DialogInterface;
 import android.os.Bundle;
 import android.support.v4.app.FragmentManager;
@@ -10,6 +11,7 @@ import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuItem;
 import com.matburt.mobileorg.R;
 import com.matburt.mobileorg.OrgData.OrgNode;
+import com.matburt.mobileorg.OrgData.OrgWriteQueue;
 import com.matburt.mobileorg.Services.SyncService;
 import com.matburt.mobileorg.util.OrgUtils;
 import com.matburt.mobileorg.util.PreferenceUtils;
@@ -112,11 +114,21 @@ public class EditActivity extends SherlockFragmentActivity implements EditHost,
 	}
 
 	
+	/**
+	 * The activity finishes right away, the node is written in the
+	 * background.
+	 */
 	public void saveEdits() {
-		OrgNode newNode = getEditedNode();
-		controller.saveEdits(newNode);
-		
-		OrgUtils.announceSyncDone(this);
+		final OrgNode newNode = getEditedNode();
+		final EditActivityController controller = this.controller;
+		OrgWriteQueue.post(this, new OrgWriteQueue.Write() {
+			@Override
+			public void apply(ContentResolver resolver) {
+				OrgNode node = new OrgNode();
+				node.set(newNode);
+				controller.saveEdits(node);
+			}
+		});
 	}
 	
 	public OrgNode getEditedNode() {
@@ -30,8 +30,11 @@ public class EditActivityControllerEdit extends EditActivityController {
 
 	@Override
 	public void saveEdits(OrgNode newNode) {
-		this.node.generateApplyWriteEdits(newNode, this.nodeOlpPath, resolver);
-		this.node.updateAllNodes(resolver);		
+		// Works on a copy, so saving again after a failed write still finds the edits
+		OrgNode editedNode = new OrgNode();
+		editedNode.set(this.node);
+		editedNode.generateApplyWriteEdits(newNode, this.nodeOlpPath, resolver);
+		editedNode.updateAllNodes(resolver);		
 	}
 
 	@Override
@@ -2,6 +2,7 @@ package com.matburt.mobileorg.Gui;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
 
 import android.app.Activity;
@@ -14,6 +15,7 @@ import android.util.Log;
 import android.widget.Toast;
 
 import com.matburt.mobileorg.R;
+import com.matburt.mobileorg.OrgData.MobileOrgApplication;
 import com.matburt.mobileorg.OrgData.OrgDatabase;
 import com.matburt.mobileorg.OrgData.OrgFile;
 import com.matburt.mobileorg.OrgData.OrgFileParser;
@@ -72,10 +74,15 @@ public class FileDecryptionActivity extends Activity
 			BufferedReader reader = new BufferedReader(new InputStreamReader(
 					new ByteArrayInputStream(decryptedData.getBytes())));
 
-			OrgDatabase db = new OrgDatabase(this);
+			OrgDatabase db = MobileOrgApplication.acquireDatabase(getApplicationContext());
 			OrgFileParser parser = new OrgFileParser(db, getContentResolver());
-			parser.parse(new OrgFile(filename, name, checksum), reader, this);
-			db.close();
+			try {
+				parser.parse(new OrgFile(filename, name, checksum), reader, this);
+			} catch (IOException e) {
+				Log.e("MobileOrg", "Failed to parse " + filename, e);
+			} finally {
+				MobileOrgApplication.releaseDatabase(db);
+			}
 			break;
 		}
 		finish();
@@ -18,6 +18,7 @@ import com.matburt.mobileorg.Gui.Capture.EditActivity;
 import com.matburt.mobileorg.Gui.Capture.EditActivityController;
 import com.matburt.mobileorg.OrgData.OrgFile;
 import com.matburt.mobileorg.OrgData.OrgNode;
+import com.matburt.mobileorg.OrgData.OrgWriteQueue;
 import com.matburt.mobileorg.Services.CalendarSyncService;
 import com.matburt.mobileorg.Services.TimeclockService;
 import com.matburt.mobileorg.util.OrgFileNotFoundException;
@@ -151,8 +152,7 @@ public class OutlineActionMode implements ActionMode.Callback {
 				.setPositiveButton(R.string.yes,
 						new DialogInterface.OnClickListener() {
 							public void onClick(DialogInterface dialog, int id) {
-								node.deleteNode(resolver);
-								OrgUtils.announceSyncDone(context);
+								deleteNode();
 							}
 						})
 				.setNegativeButton(R.string.no, new DialogInterface.OnClickListener() {
@@ -181,12 +181,50 @@ public class OutlineActionMode implements ActionMode.Callback {
 		builder.create().show();
 	}
 
-	private void archiveNode(boolean archiveToSibling) {		
-		if(archiveToSibling)
-			node.archiveNodeToSibling(resolver);
-		else
-			node.archiveNode(resolver);
-		OrgUtils.announceSyncDone(context);
+	private void deleteNode() {
+		final OrgNode deletedNode = node;
+		removeNodeFromList();
+		OrgWriteQueue.post(context, new OrgWriteQueue.Write() {
+			@Override
+			public void apply(ContentResolver resolver) {
+				getNodeCopy(deletedNode).deleteNode(resolver);
+			}
+		});
+	}
+	
+	private void archiveNode(final boolean archiveToSibling) {
+		final OrgNode archivedNode = node;
+		removeNodeFromList();
+		OrgWriteQueue.post(context, new OrgWriteQueue.Write() {
+			@Override
+			public void apply(ContentResolver resolver) {
+				OrgNode copy = getNodeCopy(archivedNode);
+				if(archiveToSibling)
+					copy.archiveNodeToSibling(resolver);
+				else
+					copy.archiveNode(resolver);
+			}
+		});
+	}
+	
+	private static OrgNode getNodeCopy(OrgNode node) {
+		OrgNode copy = new OrgNode();
+		copy.set(node);
+		return copy;
+	}
+	
+	/**
+	 * Removes the node and its visible descendants from the outline before
+	 * it is removed from the database.
+	 */
+	private void removeNodeFromList() {
+		int position = adapter.getPosition(node);
+		if (position < 0)
+			return;
+		
+		if (adapter.getExpanded(position))
+			adapter.collapse(node, position);
+		adapter.remove(node);
 	}
 	
 	private void runDeleteFileNode() {
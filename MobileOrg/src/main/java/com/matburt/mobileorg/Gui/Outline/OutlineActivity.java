@@ -1,5 +1,7 @@
 package com.matburt.mobileorg.Gui.Outline;
 
+import java.util.Set;
+
 import android.app.AlertDialog;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -19,6 +21,7 @@ import com.actionbarsherlock.view.Window;
 import com.matburt.mobileorg.R;
 import com.matburt.mobileorg.Gui.Agenda.AgendasActivity;
 import com.matburt.mobileorg.Gui.Wizard.WizardActivity;
+import com.matburt.mobileorg.OrgData.OrgChangeNotifier;
 import com.matburt.mobileorg.OrgData.OrgProviderUtils;
 import com.matburt.mobileorg.Services.SyncService;
 import com.matburt.mobileorg.Settings.SettingsActivity;
@@ -41,6 +44,13 @@ public class OutlineActivity extends SherlockActivity {
 
 	private SynchServiceReceiver syncReceiver;
 	private MenuItem synchronizerMenuItem;
+	
+	private final OrgChangeNotifier.OnChangeListener changeListener = new OrgChangeNotifier.OnChangeListener() {
+		@Override
+		public void onChange(Set<Uri> changedUris) {
+			refreshDisplay();
+		}
+	};
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -60,6 +70,7 @@ public class OutlineActivity extends SherlockActivity {
 		this.syncReceiver = new SynchServiceReceiver();
 		registerReceiver(this.syncReceiver, new IntentFilter(
 				Synchronizer.SYNC_UPDATE));
+		OrgChangeNotifier.registerListener(changeListener);
 		
 		refreshDisplay();
 	}
@@ -120,6 +131,7 @@ public class OutlineActivity extends SherlockActivity {
 	@Override
 	protected void onDestroy() {
 		unregisterReceiver(this.syncReceiver);
+		OrgChangeNotifier.unregisterListener(changeListener);
 		super.onDestroy();
 	}
 		
@@ -264,7 +276,6 @@ public class OutlineActivity extends SherlockActivity {
 			} else if (syncDone) {
 				setSupportProgressBarVisibility(false);
 				setSupportProgressBarIndeterminateVisibility(false);
-				refreshDisplay();
 				synchronizerMenuItem.setVisible(true);
 
 				if (showToast)
@@ -278,7 +289,6 @@ public class OutlineActivity extends SherlockActivity {
 				setSupportProgressBarIndeterminate(false);
 				int normalizedProgress = (Window.PROGRESS_END - Window.PROGRESS_START) / 100 * progress;
 				setSupportProgress(normalizedProgress);
-				refreshDisplay();
 			}
 		}
 	}
@@ -13,7 +13,6 @@ import com.matburt.mobileorg.R;
 import com.matburt.mobileorg.Gui.Theme.DefaultTheme;
 import com.matburt.mobileorg.OrgData.OrgNode;
 import com.matburt.mobileorg.OrgData.OrgProviderUtils;
-import com.matburt.mobileorg.util.OrgNodeNotFoundException;
 
 public class OutlineAdapter extends ArrayAdapter<OrgNode> {
 
@@ -56,12 +55,8 @@ public class OutlineAdapter extends ArrayAdapter<OrgNode> {
 	public void setState(long[] state) {
 		clear();
 		
-		for(int i = 0; i < state.length; i++) {
-			try {
-				OrgNode node = new OrgNode(state[i], resolver);
-				add(node);
-			} catch (OrgNodeNotFoundException e) {}
-		}
+		for (OrgNode node : OrgProviderUtils.getOrgNodeHeadings(state, resolver))
+			add(node);
 	}
 	
 	public void refresh() {
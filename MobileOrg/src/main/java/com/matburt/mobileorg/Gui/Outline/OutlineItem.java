@@ -16,6 +16,7 @@ import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
+import android.util.Log;
 import android.view.Gravity;
 import android.view.View;
 import android.widget.Button;
@@ -28,8 +29,8 @@ import com.matburt.mobileorg.Gui.Theme.DefaultTheme;
 import com.matburt.mobileorg.OrgData.OrgFileParser;
 import com.matburt.mobileorg.OrgData.OrgNode;
 import com.matburt.mobileorg.OrgData.OrgProviderUtils;
+import com.matburt.mobileorg.OrgData.OrgWriteQueue;
 import com.matburt.mobileorg.util.OrgNodeNotFoundException;
-import com.matburt.mobileorg.util.OrgUtils;
 import com.matburt.mobileorg.util.PreferenceUtils;
 
 public class OutlineItem extends RelativeLayout implements Checkable {
@@ -83,26 +84,41 @@ public class OutlineItem extends RelativeLayout implements Checkable {
 		return builder.create();
 	}
 	
-	private void setNewTodo(String selectedTodo) {
+	/**
+	 * Shows the new todo right away, the node and its edit are written in
+	 * the background.
+	 */
+	private void setNewTodo(final String selectedTodo) {
 		if (selectedTodo.equals(node.todo))
 			return;
 
-		ContentResolver resolver = getContext().getContentResolver();
+		final OrgNode oldNode = new OrgNode();
+		oldNode.set(node);
+		node.todo = selectedTodo;
+		setupTodo(selectedTodo, theme, getContext().getContentResolver());
 		
-		OrgNode newNode;
-		try {
-			newNode = new OrgNode(node.id, resolver);
-		} catch (OrgNodeNotFoundException e) {
-			e.printStackTrace();
-			return;
-		}
-		newNode.todo = selectedTodo;
-		node.generateApplyWriteEdits(newNode, null, resolver);
-		node.write(resolver);
-		OrgUtils.announceSyncDone(getContext());
+		OrgWriteQueue.post(getContext(), new OrgWriteQueue.Write() {
+			@Override
+			public void apply(ContentResolver resolver) {
+				OrgNode newNode;
+				try {
+					newNode = new OrgNode(oldNode.id, resolver);
+				} catch (OrgNodeNotFoundException e) {
+					Log.e("MobileOrg", "Node " + oldNode.id + " was removed", e);
+					// The queue reports the failure and reverts the ui
+					throw new IllegalStateException(e);
+				}
+				newNode.todo = selectedTodo;
+				OrgNode editedNode = new OrgNode();
+				editedNode.set(oldNode);
+				editedNode.generateApplyWriteEdits(newNode, null, resolver);
+				editedNode.write(resolver);
+			}
+		});
 	}
 	
 	private OrgNode node;
+	private DefaultTheme theme;
 	
 	public void setLevelFormating(boolean enabled) {
 		this.levelFormatting = enabled;
@@ -110,6 +126,7 @@ public class OutlineItem extends RelativeLayout implements Checkable {
 	
 	public void setup(OrgNode node, boolean expanded, DefaultTheme theme, ContentResolver resolver) {
 		this.node = node;
+		this.theme = theme;
 		setupTags(node.tags, node.tags_inherited, theme);
 		
 		SpannableStringBuilder titleSpan = new SpannableStringBuilder(node.name);
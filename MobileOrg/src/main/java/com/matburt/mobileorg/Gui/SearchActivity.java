@@ -50,10 +50,10 @@ public class SearchActivity extends SherlockActivity {
 	}
 
 	private void doSearch(String query) {
-		Cursor result = OrgProviderUtils.search("%" + query.trim() + "%",
+		Cursor result = OrgProviderUtils.search(query.trim(),
 				getContentResolver());
 		ArrayList<OrgNode> data = OrgProviderUtils
-				.orgDataCursorToArrayList(result);
+				.orgDataCursorToArrayList(result, getContentResolver());
 
 		if(result.getCount() == 0) {
 			getSupportActionBar().setTitle(
@@ -1,5 +1,7 @@
 package com.matburt.mobileorg.OrgData;
 
+import java.util.HashMap;
+
 import android.app.Application;
 import android.content.Context;
 
@@ -9,6 +11,18 @@ public class MobileOrgApplication extends Application {
     
 	private static MobileOrgApplication instance;
 	
+	/** Shared database helpers keyed by the context they were opened with. */
+	private static final HashMap<Context, SharedDatabase> databases = new HashMap<Context, SharedDatabase>();
+	
+	private static class SharedDatabase {
+		final OrgDatabase database;
+		int references = 0;
+		
+		SharedDatabase(OrgDatabase database) {
+			this.database = database;
+		}
+	}
+	
     @Override
     public void onCreate() {
     	instance = this;
@@ -18,4 +32,42 @@ public class MobileOrgApplication extends Application {
     public static Context getContext() {
     	return instance;
     }
+    
+	/**
+	 * Returns the database helper shared by the provider, the parser and the
+	 * agenda, so they use one page cache and one set of compiled statements.
+	 * Every call has to be paired with {@link #releaseDatabase(OrgDatabase)},
+	 * the database is closed when the last user released it.
+	 * 
+	 * The context has to be the application context. Content providers get
+	 * it before {@link #onCreate()} runs, so this can't rely on
+	 * {@link #getContext()}. Test contexts get a database of their own.
+	 */
+	public static synchronized OrgDatabase acquireDatabase(Context context) {
+		SharedDatabase sharedDatabase = databases.get(context);
+		if (sharedDatabase == null) {
+			sharedDatabase = new SharedDatabase(new OrgDatabase(context));
+			databases.put(context, sharedDatabase);
+		}
+		
+		sharedDatabase.references++;
+		return sharedDatabase.database;
+	}
+	
+	public static synchronized void releaseDatabase(OrgDatabase database) {
+		for (Context context : databases.keySet()) {
+			SharedDatabase sharedDatabase = databases.get(context);
+			if (sharedDatabase.database != database)
+				continue;
+			
+			sharedDatabase.references--;
+			if (sharedDatabase.references == 0) {
+				databases.remove(context);
+				database.close();
+			}
+			return;
+		}
+		
+		throw new IllegalStateException("Database was not acquired");
+	}
 }
@@ -0,0 +1,167 @@
+package com.matburt.mobileorg.OrgData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Collects the change notifications of {@link OrgProvider} and sends them
+ * together once the database has been quiet for {@link #DEBOUNCE_MS}, or at
+ * the latest {@link #MAX_DELAY_MS} after the first of them.
+ *
+ * Logical operations that consist of many writes, like a synchronization,
+ * are wrapped in {@link #beginBatch()} and {@link #endBatch()}. Batches
+ * belong to the thread that opened them: changes made by that thread are
+ * held until its batch ends, changes made by other threads are sent as
+ * usual. A changed uri replaces all pending uris below it, so a change of a
+ * whole table is reported once instead of once per row.
+ *
+ * Listeners receive the set of changed uris on the main thread.
+ */
+public class OrgChangeNotifier {
+	public static final long DEBOUNCE_MS = 300;
+	public static final long MAX_DELAY_MS = 2000;
+
+	public interface OnChangeListener {
+		public void onChange(Set<Uri> changedUris);
+	}
+
+	private static class Batch {
+		int depth = 0;
+		final HashSet<Uri> uris = new HashSet<Uri>();
+	}
+
+	private static final HashSet<Uri> pendingUris = new HashSet<Uri>();
+	private static final ArrayList<OnChangeListener> listeners = new ArrayList<OnChangeListener>();
+	private static final ThreadLocal<Batch> batches = new ThreadLocal<Batch>();
+	private static ContentResolver resolver = null;
+	private static Handler handler = null;
+	/** Uptime of the oldest pending change, 0 if nothing is pending. */
+	private static long firstPendingTime = 0;
+
+	private static final Runnable dispatch = new Runnable() {
+		@Override
+		public void run() {
+			dispatchChanges();
+		}
+	};
+
+	public static void beginBatch() {
+		Batch batch = batches.get();
+		if (batch == null) {
+			batch = new Batch();
+			batches.set(batch);
+		}
+		batch.depth++;
+	}
+
+	public static void endBatch() {
+		Batch batch = batches.get();
+		if (batch == null)
+			throw new IllegalStateException("endBatch() without beginBatch()");
+
+		batch.depth--;
+		if (batch.depth > 0)
+			return;
+
+		batches.remove();
+		synchronized (OrgChangeNotifier.class) {
+			for (Uri uri : batch.uris)
+				addPendingUri(pendingUris, uri);
+			if (pendingUris.isEmpty() == false)
+				scheduleDispatch();
+		}
+	}
+
+	public static void notifyChange(Uri uri, ContentResolver resolver) {
+		Batch batch = batches.get();
+		synchronized (OrgChangeNotifier.class) {
+			OrgChangeNotifier.resolver = resolver;
+			if (batch != null) {
+				addPendingUri(batch.uris, uri);
+			} else {
+				addPendingUri(pendingUris, uri);
+				scheduleDispatch();
+			}
+		}
+	}
+
+	public static synchronized void registerListener(OnChangeListener listener) {
+		if (listeners.contains(listener) == false)
+			listeners.add(listener);
+	}
+
+	public static synchronized void unregisterListener(OnChangeListener listener) {
+		listeners.remove(listener);
+	}
+
+	private static void addPendingUri(HashSet<Uri> uris, Uri uri) {
+		Iterator<Uri> iterator = uris.iterator();
+		while (iterator.hasNext()) {
+			Uri pendingUri = iterator.next();
+			if (isSameOrBelow(uri, pendingUri))
+				return;
+			if (isSameOrBelow(pendingUri, uri))
+				iterator.remove();
+		}
+		uris.add(uri);
+	}
+
+	/**
+	 * @return Whether uri equals parent or is one of its sub uris.
+	 */
+	private static boolean isSameOrBelow(Uri uri, Uri parent) {
+		String uriString = uri.toString();
+		String parentString = parent.toString();
+		return uriString.equals(parentString)
+				|| uriString.startsWith(parentString + "/");
+	}
+
+	/**
+	 * Each change restarts the debounce window, but a steady stream of
+	 * changes can't hold back the ones pending since {@link #MAX_DELAY_MS}.
+	 */
+	private static void scheduleDispatch() {
+		if (handler == null)
+			handler = new Handler(Looper.getMainLooper());
+
+		long now = SystemClock.uptimeMillis();
+		if (firstPendingTime == 0)
+			firstPendingTime = now;
+		long delay = Math.min(DEBOUNCE_MS, firstPendingTime + MAX_DELAY_MS - now);
+
+		handler.removeCallbacks(dispatch);
+		handler.postDelayed(dispatch, Math.max(0, delay));
+	}
+
+	private static void dispatchChanges() {
+		Set<Uri> changedUris;
+		ArrayList<OnChangeListener> currentListeners;
+		ContentResolver currentResolver;
+
+		synchronized (OrgChangeNotifier.class) {
+			if (pendingUris.isEmpty())
+				return;
+
+			changedUris = Collections.unmodifiableSet(new HashSet<Uri>(pendingUris));
+			pendingUris.clear();
+			firstPendingTime = 0;
+			currentListeners = new ArrayList<OnChangeListener>(listeners);
+			currentResolver = resolver;
+		}
+
+		for (Uri uri : changedUris)
+			currentResolver.notifyChange(uri, null);
+
+		for (OnChangeListener listener : currentListeners)
+			listener.onChange(changedUris);
+	}
+}
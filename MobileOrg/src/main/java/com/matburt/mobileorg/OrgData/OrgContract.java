@@ -1,5 +1,7 @@
 package com.matburt.mobileorg.OrgData;
 
+import java.util.ArrayList;
+
 import android.net.Uri;
 
 public class OrgContract {
@@ -24,6 +26,16 @@ public class OrgContract {
 		String TAGS = "tags";
 		String TAGS_INHERITED = "tags_inherited";
 		String PAYLOAD = "payload";
+		String CHILD_COUNT = "child_count";
+		String DESCENDANT_COUNT = "descendant_count";
+		String PATH = "path";
+		String SCHEDULED = "scheduled";
+		String SCHEDULED_END = "scheduled_end";
+		String DEADLINE = "deadline";
+		String DEADLINE_END = "deadline_end";
+		String TIMESTAMP = "timestamp";
+		String TIMESTAMP_END = "timestamp_end";
+		String ORG_ID = "org_id";
 	}
 	
 	interface FilesColumns {
@@ -31,6 +43,7 @@ public class OrgContract {
 		String NAME = "name";
 		String FILENAME = "filename";
 		String CHECKSUM = "checksum";
+		String CONTENT_DIGEST = "content_digest";
 		String NODE_ID = "node_id";
 	}
 	
@@ -92,7 +105,76 @@ public class OrgContract {
 
 		
 		public static final String[] DEFAULT_COLUMNS = { ID, NAME, TODO, TAGS, TAGS_INHERITED,
-				PARENT_ID, PAYLOAD, LEVEL, PRIORITY, FILE_ID };
+				PARENT_ID, PAYLOAD, LEVEL, PRIORITY, FILE_ID, CHILD_COUNT, DESCENDANT_COUNT, PATH };
+		
+		/**
+		 * Columns for lists of headings. Nodes read with these columns load
+		 * their payload when it is first used.
+		 */
+		public static final String[] HEADING_COLUMNS = { ID, NAME, TODO, TAGS, TAGS_INHERITED,
+				PARENT_ID, LEVEL, PRIORITY, FILE_ID, CHILD_COUNT, DESCENDANT_COUNT, PATH };
+		
+		/**
+		 * Begin and end times in milliseconds of the dates in the payload,
+		 * null if the payload has no such date.
+		 */
+		public static final String[] DATE_COLUMNS = { SCHEDULED, SCHEDULED_END,
+				DEADLINE, DEADLINE_END, TIMESTAMP, TIMESTAMP_END };
+		
+		/**
+		 * Selects the nodes that have or inherit any of the given tags, with
+		 * one argument per tag name.
+		 */
+		public static String buildTagSelection(int tagCount) {
+			StringBuilder placeholders = new StringBuilder();
+			for (int i = 0; i < tagCount; i++)
+				placeholders.append(i == 0 ? "?" : ",?");
+			
+			return ID + " IN (SELECT node_tags.node_id FROM node_tags "
+					+ "JOIN tag_names ON tag_names._id=node_tags.tag_id "
+					+ "WHERE tag_names.name IN (" + placeholders + "))";
+		}
+		
+		/** Selects the descendants of the node whose children have the given path. */
+		public static final String SUBTREE_SELECTION = PATH + ">=? AND " + PATH + "<?";
+		
+		/**
+		 * The path of a node lists the ids of its ancestors, starting with
+		 * the file node. Every id is prefixed with its number of digits, so
+		 * the path of a node is a prefix of the paths of all its descendants
+		 * and paths sort like the ids they contain.
+		 * 
+		 * @return Path of the children of the given node.
+		 */
+		public static String buildChildPath(String path, long nodeId) {
+			String id = Long.toString(nodeId, Character.MAX_RADIX);
+			return (path != null ? path : "")
+					+ Character.forDigit(id.length(), Character.MAX_RADIX) + id;
+		}
+		
+		/**
+		 * @return Arguments for {@link #SUBTREE_SELECTION}.
+		 */
+		public static String[] buildSubtreeSelectionArgs(String childPath) {
+			return new String[] { childPath, childPath + "~" };
+		}
+		
+		/**
+		 * @return Ids of the ancestors in the path, starting with the file node.
+		 */
+		public static ArrayList<Long> getPathIds(String path) {
+			ArrayList<Long> ids = new ArrayList<Long>();
+			int position = 0;
+			while (path != null && position < path.length()) {
+				int length = Character.digit(path.charAt(position), Character.MAX_RADIX);
+				if (length <= 0 || position + 1 + length > path.length())
+					break;
+				ids.add(Long.parseLong(path.substring(position + 1, position + 1 + length),
+						Character.MAX_RADIX));
+				position += 1 + length;
+			}
+			return ids;
+		}
 	}
 	
 	public static class Edits implements EditsColumns {
@@ -120,7 +202,7 @@ public class OrgContract {
 				BASE_CONTENT_URI.buildUpon().appendPath(PATH_FILES).build();
 
 		public static final String[] DEFAULT_COLUMNS = { ID, NAME, FILENAME,
-				CHECKSUM, NODE_ID };
+				CHECKSUM, CONTENT_DIGEST, NODE_ID };
 		public static final String DEFAULT_SORT = NAME + " ASC";
 		
 		public static String getId(Uri uri) {
@@ -165,5 +247,9 @@ public class OrgContract {
 		public static String getSearchTerm(Uri uri) {
 			return uri.getLastPathSegment();
 		}
+		
+		public static Uri buildSearchUri(String query) {
+			return CONTENT_URI.buildUpon().appendPath(query).build();
+		}
 	}
 }
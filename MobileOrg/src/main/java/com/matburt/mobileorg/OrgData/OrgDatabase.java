@@ -1,28 +1,46 @@
 package com.matburt.mobileorg.OrgData;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+import android.content.ContentValues;
 import android.content.Context;
-import android.database.DatabaseUtils.InsertHelper;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.text.TextUtils;
 
 import com.matburt.mobileorg.OrgData.OrgContract.OrgData;
+import com.matburt.mobileorg.util.PreferenceUtils;
 
 public class OrgDatabase extends SQLiteOpenHelper {
 	private static final String DATABASE_NAME = "MobileOrg.db";
-	private static final int DATABASE_VERSION = 5;
+	private static final int DATABASE_VERSION = 14;
 
-	private int orgdata_nameColumn;
-	private int orgdata_todoColumn;
-	private int orgdata_tagsColumn;
-	private int orgdata_tagsInheritedColumn;
-	private int orgdata_priorityColumn;
-	private int orgdata_parentidColumn;
-	private int orgdata_fileidColumn;
-	private int orgdata_levelColumn;
-	
-	private InsertHelper orgdataInsertHelper;
-	private SQLiteStatement addPayloadStatement;
+	/** Compiled statements kept per sql string, see {@link #acquireStatement(String)}. */
+	private static final int MAX_POOLED_STATEMENTS = 4;
+	/** Cursor queries are cached as compiled statements by each connection. */
+	private static final int SQL_CACHE_SIZE = 50;
+	
+	private static final String INSERT_NODE = "INSERT INTO orgdata (parent_id, name, todo, priority, file_id, tags, tags_inherited, level, payload, path, "
+			+ "scheduled, scheduled_end, deadline, deadline_end, timestamp, timestamp_end, org_id) VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+	private static final String UPDATE_PAYLOAD = "UPDATE orgdata SET payload=? WHERE _id=?";
+	private static final String UPDATE_NODE = "UPDATE orgdata SET todo=?, priority=?, tags=?, tags_inherited=?, payload=?, "
+			+ "scheduled=?, scheduled_end=?, deadline=?, deadline_end=?, timestamp=?, timestamp_end=?, org_id=? WHERE _id=?";
+	private static final String DELETE_NODE = "DELETE FROM orgdata WHERE _id=?";
+	private static final String UPDATE_NODE_COUNTS = "UPDATE orgdata SET child_count=?, descendant_count=? WHERE _id=?";
+	private static final String SELECT_PARENT_ID = "SELECT parent_id FROM orgdata WHERE _id=?";
+	private static final String SELECT_PATH = "SELECT path FROM orgdata WHERE _id=?";
+	private static final String DELETE_NODE_TAGS = "DELETE FROM node_tags WHERE node_id=?";
+	private static final String INSERT_NODE_TAG = "INSERT INTO node_tags (node_id, tag_id, inherited) VALUES (?,?,?)";
+	
+	private final HashMap<String, ArrayList<SQLiteStatement>> statementPool = new HashMap<String, ArrayList<SQLiteStatement>>();
+	/** Interned ids of tag names, tag names are never deleted. */
+	private final HashMap<String, Long> tagIds = new HashMap<String, Long>();
 	
 	public interface Tables {
 		String EDITS = "edits";
@@ -31,6 +49,9 @@ public class OrgDatabase extends SQLiteOpenHelper {
 		String TAGS = "tags";
 		String TODOS = "todos";
 		String ORGDATA = "orgdata";
+		String ORGDATA_FTS = "orgdata_fts";
+		String TAG_NAMES = "tag_names";
+		String NODE_TAGS = "node_tags";
 	}
 	
 	public OrgDatabase(Context context) {
@@ -44,7 +65,8 @@ public class OrgDatabase extends SQLiteOpenHelper {
 				+ "node_id integer,"
 				+ "filename text,"
 				+ "name text,"
-				+ "checksum text)");
+				+ "checksum text,"
+				+ "content_digest text)");
 		db.execSQL("CREATE TABLE IF NOT EXISTS todos("
 				+ "_id integer primary key autoincrement,"
 				+ "todogroup integer,"
@@ -75,63 +97,665 @@ public class OrgDatabase extends SQLiteOpenHelper {
 				+ "tags text,"
 				+ "tags_inherited text,"
 				+ "payload text,"
-				+ "name text)");
+				+ "name text,"
+				+ "child_count integer default 0,"
+				+ "descendant_count integer default 0,"
+				+ "path text default '',"
+				+ "scheduled integer,"
+				+ "scheduled_end integer,"
+				+ "deadline integer,"
+				+ "deadline_end integer,"
+				+ "timestamp integer,"
+				+ "timestamp_end integer,"
+				+ "org_id text)");
+		createIndexes(db);
+		createSearchTable(db);
+		createTagTables(db);
+	}
+	
+	/**
+	 * The index on parent_id covers the heading columns, so listing the
+	 * children of a node in the outline doesn't have to touch the table.
+	 */
+	private void createIndexes(SQLiteDatabase db) {
+		db.execSQL("CREATE INDEX IF NOT EXISTS orgdata_parent_id_idx ON orgdata("
+				+ "parent_id, file_id, level, priority, todo, tags, tags_inherited, name, "
+				+ "child_count, descendant_count, path)");
+		db.execSQL("CREATE INDEX IF NOT EXISTS orgdata_file_id_idx ON orgdata(file_id)");
+		db.execSQL("CREATE INDEX IF NOT EXISTS orgdata_path_idx ON orgdata(path)");
+		db.execSQL("CREATE INDEX IF NOT EXISTS orgdata_todo_idx ON orgdata(todo)");
+		db.execSQL("CREATE INDEX IF NOT EXISTS orgdata_priority_idx ON orgdata(priority)");
+		db.execSQL("CREATE INDEX IF NOT EXISTS orgdata_scheduled_idx ON orgdata(scheduled)");
+		db.execSQL("CREATE INDEX IF NOT EXISTS orgdata_deadline_idx ON orgdata(deadline)");
+		db.execSQL("CREATE INDEX IF NOT EXISTS orgdata_timestamp_idx ON orgdata(timestamp)");
+		db.execSQL("CREATE INDEX IF NOT EXISTS orgdata_org_id_idx ON orgdata(org_id)");
+		db.execSQL("CREATE INDEX IF NOT EXISTS files_filename_idx ON files(filename)");
+		db.execSQL("CREATE INDEX IF NOT EXISTS edits_data_id_idx ON edits(data_id)");
+	}
+	
+	/**
+	 * Full text index over the name and payload of nodes. It is keyed by the
+	 * id of the orgdata row and kept up to date by triggers, which covers
+	 * both the parser and writes through the provider.
+	 */
+	private void createSearchTable(SQLiteDatabase db) {
+		db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS orgdata_fts USING fts3(name, payload)");
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS orgdata_fts_insert AFTER INSERT ON orgdata BEGIN "
+				+ "INSERT INTO orgdata_fts(docid, name, payload) VALUES (new._id, new.name, new.payload); "
+				+ "END");
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS orgdata_fts_update AFTER UPDATE OF name, payload ON orgdata BEGIN "
+				+ "UPDATE orgdata_fts SET name=new.name, payload=new.payload WHERE docid=old._id; "
+				+ "END");
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS orgdata_fts_delete AFTER DELETE ON orgdata BEGIN "
+				+ "DELETE FROM orgdata_fts WHERE docid=old._id; "
+				+ "END");
+	}
+	
+	/**
+	 * Write-ahead logging lets the outline and agenda read while a
+	 * synchronization writes. It is only used from Honeycomb on, older
+	 * versions keep the rollback journal. Page cache size and the synchronous
+	 * level are taken from the preferences.
+	 */
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		if (db.isReadOnly())
+			return;
+		
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			db.enableWriteAheadLogging();
+			db.setMaxSqlCacheSize(SQL_CACHE_SIZE);
+		}
+		
+		db.execSQL("PRAGMA synchronous=" + PreferenceUtils.getDatabaseSynchronous());
+		db.execSQL("PRAGMA cache_size=" + PreferenceUtils.getDatabaseCacheSize());
+	}
+	
+	@Override
+	public synchronized void close() {
+		synchronized (statementPool) {
+			for (ArrayList<SQLiteStatement> statements : statementPool.values()) {
+				for (SQLiteStatement statement : statements)
+					statement.close();
+			}
+			statementPool.clear();
+		}
+		super.close();
+	}
+	
+	/**
+	 * Takes an idle compiled statement for the sql from the pool, or compiles
+	 * a new one. Statements are used by one thread at a time and have to be
+	 * given back with {@link #releaseStatement(String, SQLiteStatement)}.
+	 */
+	private SQLiteStatement acquireStatement(String sql) {
+		synchronized (statementPool) {
+			ArrayList<SQLiteStatement> statements = statementPool.get(sql);
+			if (statements != null && statements.isEmpty() == false)
+				return statements.remove(statements.size() - 1);
+		}
+		return getWritableDatabase().compileStatement(sql);
+	}
+	
+	private void releaseStatement(String sql, SQLiteStatement statement) {
+		statement.clearBindings();
+		synchronized (statementPool) {
+			ArrayList<SQLiteStatement> statements = statementPool.get(sql);
+			if (statements == null) {
+				statements = new ArrayList<SQLiteStatement>();
+				statementPool.put(sql, statements);
+			}
+			
+			if (statements.size() < MAX_POOLED_STATEMENTS) {
+				statements.add(statement);
+				return;
+			}
+		}
+		statement.close();
+	}
+	
+	/**
+	 * Tags of nodes, split into one row per tag. Tag names are interned in
+	 * tag_names, so filtering by tag is an indexed join instead of matching
+	 * the tag strings of orgdata.
+	 */
+	private void createTagTables(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS tag_names("
+				+ "_id integer primary key autoincrement,"
+				+ "name text unique)");
+		db.execSQL("CREATE TABLE IF NOT EXISTS node_tags("
+				+ "node_id integer,"
+				+ "tag_id integer,"
+				+ "inherited integer default 0)");
+		db.execSQL("CREATE INDEX IF NOT EXISTS node_tags_tag_id_idx ON node_tags(tag_id, node_id)");
+		db.execSQL("CREATE INDEX IF NOT EXISTS node_tags_node_id_idx ON node_tags(node_id)");
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS orgdata_tags_delete AFTER DELETE ON orgdata BEGIN "
+				+ "DELETE FROM node_tags WHERE node_id=old._id; "
+				+ "END");
 	}
 	
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		switch (newVersion) {
-		case 4:
+		if (oldVersion < 4) {
 			db.execSQL("DROP TABLE IF EXISTS priorities");
 			db.execSQL("DROP TABLE IF EXISTS files");
 			db.execSQL("DROP TABLE IF EXISTS todos");
 			db.execSQL("DROP TABLE IF EXISTS edits");
 			db.execSQL("DROP TABLE IF EXISTS orgdata");
-			break;
-			
-		case 5:
+			onCreate(db);
+			return;
+		}
+		
+		// Migrations are applied in order, indexes are created by onCreate()
+		if (oldVersion < 5)
 			db.execSQL("alter table orgdata add tags_inherited text");
-			break;
+		
+		if (oldVersion < 7) {
+			createSearchTable(db);
+			db.execSQL("INSERT INTO orgdata_fts(docid, name, payload) "
+					+ "SELECT _id, name, payload FROM orgdata");
 		}
+		
+		if (oldVersion < 8) {
+			db.execSQL("alter table orgdata add child_count integer default 0");
+			db.execSQL("alter table orgdata add descendant_count integer default 0");
+		}
+		
+		if (oldVersion < 9)
+			db.execSQL("alter table orgdata add path text default ''");
+		
+		// Counts and paths are derived from parent_id
+		if (oldVersion < 9)
+			updateTree(db, null, null);
+		
+		if (oldVersion < 10) {
+			createTagTables(db);
+			insertAllNodeTags(db);
+		}
+		
+		if (oldVersion < 11) {
+			for (String column : OrgData.DATE_COLUMNS)
+				db.execSQL("alter table orgdata add " + column + " integer");
+			updateAllNodeDates(db);
+		}
+		
+		if (oldVersion < 12) {
+			db.execSQL("alter table orgdata add org_id text");
+			updateAllNodeOrgIds(db);
+		}
+		
+		if (oldVersion < 13)
+			db.execSQL("alter table files add content_digest text");
+		
+		// The heading columns gained counts and paths, onCreate() recreates it
+		if (oldVersion < 14)
+			db.execSQL("DROP INDEX IF EXISTS orgdata_parent_id_idx");
+
 		onCreate(db);
 	}
 	
+	/**
+	 * Inserts the node together with its payload and tags.
+	 */
 	public long fastInsertNode(OrgNode node) {
-		prepareOrgdataInsert();
-		orgdataInsertHelper.bind(orgdata_parentidColumn, node.parentId);
-		orgdataInsertHelper.bind(orgdata_nameColumn, node.name);
-		orgdataInsertHelper.bind(orgdata_todoColumn, node.todo);
-		orgdataInsertHelper.bind(orgdata_priorityColumn, node.priority);
-		orgdataInsertHelper.bind(orgdata_fileidColumn, node.fileId);
-		orgdataInsertHelper.bind(orgdata_tagsColumn, node.tags);
-		orgdataInsertHelper.bind(orgdata_tagsInheritedColumn, node.tags_inherited);
-		orgdataInsertHelper.bind(orgdata_levelColumn, node.level);
-		return orgdataInsertHelper.execute();
+		SQLiteStatement statement = acquireStatement(INSERT_NODE);
+		long id;
+		try {
+			statement.bindLong(1, node.parentId);
+			bindString(statement, 2, node.name);
+			bindString(statement, 3, node.todo);
+			bindString(statement, 4, node.priority);
+			statement.bindLong(5, node.fileId);
+			bindString(statement, 6, node.tags);
+			bindString(statement, 7, node.tags_inherited);
+			statement.bindLong(8, node.level);
+			bindString(statement, 9, node.getPayload());
+			bindString(statement, 10, node.path);
+			bindDates(statement, 11, node.getPayload());
+			bindOrgId(statement, 17, node.getPayload());
+			id = statement.executeInsert();
+		} finally {
+			releaseStatement(INSERT_NODE, statement);
+		}
+		
+		addNodeTags(id, node.tags, node.tags_inherited);
+		return id;
 	}
 		
 	public void fastInsertNodePayload(Long id, final String payload) {
-		if(addPayloadStatement == null)
-			addPayloadStatement = getWritableDatabase()
-					.compileStatement("UPDATE orgdata SET payload=? WHERE _id=?");
+		SQLiteStatement statement = acquireStatement(UPDATE_PAYLOAD);
+		try {
+			statement.bindString(1, payload);
+			statement.bindLong(2, id);
+			statement.execute();
+		} finally {
+			releaseStatement(UPDATE_PAYLOAD, statement);
+		}
+	}
+	
+	/**
+	 * Updates the parts of a node that don't affect its position in the tree.
+	 */
+	public void fastUpdateNode(OrgNode node) {
+		SQLiteStatement statement = acquireStatement(UPDATE_NODE);
+		try {
+			bindString(statement, 1, node.todo);
+			bindString(statement, 2, node.priority);
+			bindString(statement, 3, node.tags);
+			bindString(statement, 4, node.tags_inherited);
+			bindString(statement, 5, node.getPayload());
+			bindDates(statement, 6, node.getPayload());
+			bindOrgId(statement, 12, node.getPayload());
+			statement.bindLong(13, node.id);
+			statement.execute();
+		} finally {
+			releaseStatement(UPDATE_NODE, statement);
+		}
+		
+		fastSetNodeTags(node.id, node.tags, node.tags_inherited);
+	}
+	
+	public void fastDeleteNode(long id) {
+		SQLiteStatement statement = acquireStatement(DELETE_NODE);
+		try {
+			statement.bindLong(1, id);
+			statement.execute();
+		} finally {
+			releaseStatement(DELETE_NODE, statement);
+		}
+	}
+	
+	/**
+	 * Replaces the rows of the node in node_tags.
+	 * 
+	 * @param tags
+	 *            Colon separated tags of the node itself.
+	 * @param tagsInherited
+	 *            Colon separated tags inherited from its ancestors.
+	 */
+	public void fastSetNodeTags(long nodeId, String tags, String tagsInherited) {
+		SQLiteStatement statement = acquireStatement(DELETE_NODE_TAGS);
+		try {
+			statement.bindLong(1, nodeId);
+			statement.execute();
+		} finally {
+			releaseStatement(DELETE_NODE_TAGS, statement);
+		}
+		
+		addNodeTags(nodeId, tags, tagsInherited);
+	}
+	
+	private void addNodeTags(long nodeId, String tags, String tagsInherited) {
+		if (TextUtils.isEmpty(tags) && TextUtils.isEmpty(tagsInherited))
+			return;
+		
+		SQLiteDatabase db = getWritableDatabase();
+		SQLiteStatement statement = acquireStatement(INSERT_NODE_TAG);
+		try {
+			insertNodeTags(db, statement, tagIds, nodeId, tags, false);
+			insertNodeTags(db, statement, tagIds, nodeId, tagsInherited, true);
+		} finally {
+			releaseStatement(INSERT_NODE_TAG, statement);
+		}
+	}
+	
+	/**
+	 * Rebuilds the rows in node_tags of the given nodes from their tag
+	 * columns.
+	 */
+	public void updateNodeTags(Collection<Long> nodeIds) {
+		for (Long nodeId : nodeIds) {
+			Cursor cursor = getReadableDatabase().query(Tables.ORGDATA,
+					new String[] { OrgData.TAGS, OrgData.TAGS_INHERITED },
+					OrgData.ID + "=?", new String[] { nodeId.toString() },
+					null, null, null);
+			try {
+				if (cursor.moveToFirst())
+					fastSetNodeTags(nodeId, cursor.getString(0), cursor.getString(1));
+			} finally {
+				cursor.close();
+			}
+		}
+	}
+	
+	private static void insertAllNodeTags(SQLiteDatabase db) {
+		HashMap<String, Long> tagIds = new HashMap<String, Long>();
+		SQLiteStatement statement = db.compileStatement(INSERT_NODE_TAG);
+		Cursor cursor = db.query(Tables.ORGDATA, new String[] { OrgData.ID,
+				OrgData.TAGS, OrgData.TAGS_INHERITED }, OrgData.TAGS + "<>'' OR "
+				+ OrgData.TAGS_INHERITED + "<>''", null, null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+				insertNodeTags(db, statement, tagIds, cursor.getLong(0), cursor.getString(1), false);
+				insertNodeTags(db, statement, tagIds, cursor.getLong(0), cursor.getString(2), true);
+			}
+		} finally {
+			cursor.close();
+			statement.close();
+		}
+	}
+	
+	private static void insertNodeTags(SQLiteDatabase db, SQLiteStatement statement,
+			HashMap<String, Long> tagIds, long nodeId, String tags, boolean inherited) {
+		if (TextUtils.isEmpty(tags))
+			return;
 		
-		addPayloadStatement.bindString(1, payload);
-		addPayloadStatement.bindLong(2, id);
-		addPayloadStatement.execute();
+		for (String tag : tags.split(":")) {
+			if (TextUtils.isEmpty(tag))
+				continue;
+			
+			statement.bindLong(1, nodeId);
+			statement.bindLong(2, getTagId(db, tagIds, tag));
+			statement.bindLong(3, inherited ? 1 : 0);
+			statement.execute();
+		}
+	}
+	
+	/**
+	 * The cache isn't locked while the database is used, as that could
+	 * deadlock with a thread holding a transaction. Threads adding the same
+	 * tag at once get the same id from the unique name.
+	 */
+	private static long getTagId(SQLiteDatabase db, HashMap<String, Long> tagIds, String tag) {
+		synchronized (tagIds) {
+			Long tagId = tagIds.get(tag);
+			if (tagId != null)
+				return tagId;
+		}
+		
+		db.execSQL("INSERT OR IGNORE INTO tag_names (name) VALUES (?)",
+				new Object[] { tag });
+		SQLiteStatement statement = db.compileStatement("SELECT _id FROM tag_names WHERE name=?");
+		long tagId;
+		try {
+			statement.bindString(1, tag);
+			tagId = statement.simpleQueryForLong();
+		} finally {
+			statement.close();
+		}
+		
+		synchronized (tagIds) {
+			tagIds.put(tag, tagId);
+		}
+		return tagId;
+	}
+	
+	/**
+	 * @return Number of nodes that have or inherit each tag.
+	 */
+	public HashMap<String, Integer> getTagCounts() {
+		HashMap<String, Integer> result = new HashMap<String, Integer>();
+		Cursor cursor = getReadableDatabase().rawQuery(
+				"SELECT tag_names.name, COUNT(DISTINCT node_tags.node_id) FROM node_tags "
+						+ "JOIN tag_names ON tag_names._id=node_tags.tag_id "
+						+ "GROUP BY node_tags.tag_id", null);
+		try {
+			while (cursor.moveToNext())
+				result.put(cursor.getString(0), cursor.getInt(1));
+		} finally {
+			cursor.close();
+		}
+		return result;
+	}
+	
+	public void fastUpdateNodeCounts(long id, long childCount, long descendantCount) {
+		SQLiteStatement statement = acquireStatement(UPDATE_NODE_COUNTS);
+		try {
+			statement.bindLong(1, childCount);
+			statement.bindLong(2, descendantCount);
+			statement.bindLong(3, id);
+			statement.execute();
+		} finally {
+			releaseStatement(UPDATE_NODE_COUNTS, statement);
+		}
+	}
+	
+	/**
+	 * @return Parent of the node or -1 if the node doesn't exist.
+	 */
+	public long getParentId(long nodeId) {
+		SQLiteStatement statement = acquireStatement(SELECT_PARENT_ID);
+		try {
+			statement.bindLong(1, nodeId);
+			return statement.simpleQueryForLong();
+		} catch (SQLiteDoneException e) {
+			return -1;
+		} finally {
+			releaseStatement(SELECT_PARENT_ID, statement);
+		}
+	}
+	
+	/**
+	 * Recomputes the counts and paths of all nodes of the file.
+	 */
+	public void updateFileTree(long fileId, long fileNodeId) {
+		updateTree(getWritableDatabase(), OrgData.FILE_ID + "=? OR "
+				+ OrgData.ID + "=?", new String[] { Long.toString(fileId),
+				Long.toString(fileNodeId) });
 	}
 	
-	private void prepareOrgdataInsert() {
-		if(this.orgdataInsertHelper == null) {
-			this.orgdataInsertHelper = new InsertHelper(getWritableDatabase(), Tables.ORGDATA);
-			this.orgdata_nameColumn = orgdataInsertHelper.getColumnIndex(OrgData.NAME);
-			this.orgdata_todoColumn = orgdataInsertHelper.getColumnIndex(OrgData.TODO);
-			this.orgdata_priorityColumn = orgdataInsertHelper.getColumnIndex(OrgData.PRIORITY);
-			this.orgdata_parentidColumn = orgdataInsertHelper.getColumnIndex(OrgData.PARENT_ID);
-			this.orgdata_fileidColumn = orgdataInsertHelper.getColumnIndex(OrgData.FILE_ID);
-			this.orgdata_tagsColumn = orgdataInsertHelper.getColumnIndex(OrgData.TAGS);
-			this.orgdata_tagsInheritedColumn = orgdataInsertHelper.getColumnIndex(OrgData.TAGS_INHERITED);
-			this.orgdata_levelColumn = orgdataInsertHelper.getColumnIndex(OrgData.LEVEL);
+	/**
+	 * Recomputes the child and descendant counts and the paths of the
+	 * selected nodes. The selection has to consist of whole trees, nodes
+	 * whose parent isn't selected are treated as file nodes.
+	 */
+	private static void updateTree(SQLiteDatabase db, String selection, String[] selectionArgs) {
+		HashMap<Long, Long> parentIds = new HashMap<Long, Long>();
+		HashMap<Long, ArrayList<Long>> children = new HashMap<Long, ArrayList<Long>>();
+		
+		Cursor cursor = db.query(Tables.ORGDATA, new String[] { OrgData.ID,
+				OrgData.PARENT_ID }, selection, selectionArgs, null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+				long id = cursor.getLong(0);
+				long parentId = cursor.getLong(1);
+				parentIds.put(id, parentId);
+				
+				ArrayList<Long> siblings = children.get(parentId);
+				if (siblings == null) {
+					siblings = new ArrayList<Long>();
+					children.put(parentId, siblings);
+				}
+				siblings.add(id);
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		// Breadth first from the roots, so children come after their parents
+		ArrayList<Long> order = new ArrayList<Long>(parentIds.size());
+		for (Long id : parentIds.keySet()) {
+			if (parentIds.containsKey(parentIds.get(id)) == false)
+				order.add(id);
+		}
+		for (int i = 0; i < order.size(); i++) {
+			ArrayList<Long> nodeChildren = children.get(order.get(i));
+			if (nodeChildren != null)
+				order.addAll(nodeChildren);
+		}
+		
+		HashMap<Long, String> paths = new HashMap<Long, String>();
+		HashMap<Long, long[]> counts = new HashMap<Long, long[]>();
+		for (Long id : order) {
+			String parentPath = paths.get(parentIds.get(id));
+			paths.put(id, parentPath != null ? OrgData.buildChildPath(
+					parentPath, parentIds.get(id)) : "");
+			counts.put(id, new long[2]);
+		}
+		
+		SQLiteStatement statement = db.compileStatement(
+				"UPDATE orgdata SET child_count=?, descendant_count=?, path=? WHERE _id=?");
+		try {
+			for (int i = order.size() - 1; i >= 0; i--) {
+				long id = order.get(i);
+				long[] nodeCounts = counts.get(id);
+				long[] parentCounts = counts.get(parentIds.get(id));
+				if (parentCounts != null) {
+					parentCounts[0]++;
+					parentCounts[1] += 1 + nodeCounts[1];
+				}
+				
+				statement.bindLong(1, nodeCounts[0]);
+				statement.bindLong(2, nodeCounts[1]);
+				statement.bindString(3, paths.get(id));
+				statement.bindLong(4, id);
+				statement.execute();
+			}
+		} finally {
+			statement.close();
 		}
-		orgdataInsertHelper.prepareForInsert();
+	}
+	
+	/**
+	 * Recounts the children and descendants of the node and its ancestors,
+	 * assuming the counts of all other nodes are correct.
+	 * 
+	 * @return Ids of the updated nodes.
+	 */
+	public ArrayList<Long> updateAncestorCounts(long nodeId) {
+		SQLiteDatabase db = getWritableDatabase();
+		ArrayList<Long> updatedIds = new ArrayList<Long>();
+		
+		while (nodeId >= 0 && updatedIds.contains(nodeId) == false) {
+			db.execSQL("UPDATE orgdata SET "
+					+ "child_count=(SELECT COUNT(*) FROM orgdata c WHERE c.parent_id=?),"
+					+ "descendant_count=(SELECT COUNT(*) + IFNULL(SUM(c.descendant_count), 0) "
+					+ "FROM orgdata c WHERE c.parent_id=?) WHERE _id=?",
+					new Object[] { nodeId, nodeId, nodeId });
+			updatedIds.add(nodeId);
+			nodeId = getParentId(nodeId);
+		}
+		return updatedIds;
+	}
+	
+	/**
+	 * @return Path of the children of the given node.
+	 */
+	public String getChildPath(long nodeId) {
+		if (nodeId < 0)
+			return "";
+		
+		SQLiteStatement statement = acquireStatement(SELECT_PATH);
+		String path;
+		try {
+			statement.bindLong(1, nodeId);
+			path = statement.simpleQueryForString();
+		} catch (SQLiteDoneException e) {
+			path = null;
+		} finally {
+			releaseStatement(SELECT_PATH, statement);
+		}
+		return path != null ? OrgData.buildChildPath(path, nodeId) : "";
+	}
+	
+	/**
+	 * Moves the node and its descendants to the given path.
+	 */
+	public void updatePath(long nodeId, String oldPath, String newPath) {
+		SQLiteDatabase db = getWritableDatabase();
+		db.execSQL("UPDATE orgdata SET path=? WHERE _id=?", new Object[] {
+				newPath, nodeId });
+		
+		String oldChildPath = OrgData.buildChildPath(oldPath, nodeId);
+		String newChildPath = OrgData.buildChildPath(newPath, nodeId);
+		String[] subtreeArgs = OrgData.buildSubtreeSelectionArgs(oldChildPath);
+		db.execSQL("UPDATE orgdata SET path=? || substr(path, ?) WHERE "
+				+ OrgData.SUBTREE_SELECTION, new Object[] { newChildPath,
+				oldChildPath.length() + 1, subtreeArgs[0], subtreeArgs[1] });
+	}
+	
+	/**
+	 * Deletes the node together with its descendants.
+	 */
+	public void fastDeleteSubtree(long id, String path) {
+		String[] subtreeArgs = OrgData.buildSubtreeSelectionArgs(OrgData
+				.buildChildPath(path, id));
+		getWritableDatabase().delete(Tables.ORGDATA, OrgData.ID + "=? OR ("
+				+ OrgData.SUBTREE_SELECTION + ")", new String[] {
+				Long.toString(id), subtreeArgs[0], subtreeArgs[1] });
+	}
+	
+	/**
+	 * Binds the {@link OrgData#DATE_COLUMNS} of the payload, starting at the
+	 * given index.
+	 */
+	private static void bindDates(SQLiteStatement statement, int index, String payload) {
+		ContentValues values = new ContentValues();
+		OrgNode.putDateValues(values, payload);
+		for (String column : OrgData.DATE_COLUMNS) {
+			Long value = values.getAsLong(column);
+			if (value == null)
+				statement.bindNull(index++);
+			else
+				statement.bindLong(index++, value);
+		}
+	}
+	
+	private static void bindOrgId(SQLiteStatement statement, int index, String payload) {
+		ContentValues values = new ContentValues();
+		OrgNode.putOrgIdValue(values, payload);
+		bindString(statement, index, values.getAsString(OrgData.ORG_ID));
+	}
+	
+	private static void updateAllNodeDates(SQLiteDatabase db) {
+		Cursor cursor = db.query(Tables.ORGDATA, new String[] { OrgData.ID,
+				OrgData.PAYLOAD }, OrgData.PAYLOAD + " LIKE '%<%'", null, null,
+				null, null);
+		try {
+			while (cursor.moveToNext()) {
+				ContentValues values = new ContentValues();
+				OrgNode.putDateValues(values, cursor.getString(1));
+				db.update(Tables.ORGDATA, values, OrgData.ID + "=?",
+						new String[] { Long.toString(cursor.getLong(0)) });
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	private static void updateAllNodeOrgIds(SQLiteDatabase db) {
+		Cursor cursor = db.query(Tables.ORGDATA, new String[] { OrgData.ID,
+				OrgData.PAYLOAD }, OrgData.PAYLOAD + " LIKE '%ID:%'", null, null,
+				null, null);
+		try {
+			while (cursor.moveToNext()) {
+				ContentValues values = new ContentValues();
+				OrgNode.putOrgIdValue(values, cursor.getString(1));
+				db.update(Tables.ORGDATA, values, OrgData.ID + "=?",
+						new String[] { Long.toString(cursor.getLong(0)) });
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	private static void bindString(SQLiteStatement statement, int index, String value) {
+		if(value == null)
+			statement.bindNull(index);
+		else
+			statement.bindString(index, value);
+	}
+	
+	/**
+	 * @return Cursor with all nodes of the given file, except the file node.
+	 */
+	public Cursor getFileNodes(long fileId, long fileNodeId) {
+		return getReadableDatabase().query(Tables.ORGDATA,
+				OrgData.DEFAULT_COLUMNS,
+				OrgData.FILE_ID + "=? AND " + OrgData.ID + "<>?",
+				new String[] { Long.toString(fileId), Long.toString(fileNodeId) },
+				null, null, OrgData.ID + " ASC");
+	}
+	
+	/**
+	 * @return Cursor with the children of the node in document order.
+	 */
+	public Cursor getChildNodes(long parentId) {
+		return getReadableDatabase().query(Tables.ORGDATA,
+				OrgData.DEFAULT_COLUMNS, OrgData.PARENT_ID + "=?",
+				new String[] { Long.toString(parentId) }, null, null,
+				OrgData.DEFAULT_SORT);
 	}
 	
 	public void beginTransaction() {
@@ -142,4 +766,11 @@ public class OrgDatabase extends SQLiteOpenHelper {
 		getWritableDatabase().setTransactionSuccessful();
 		getWritableDatabase().endTransaction();
 	}
+	
+	/**
+	 * Ends the transaction without committing it.
+	 */
+	public void rollbackTransaction() {
+		getWritableDatabase().endTransaction();
+	}
 }
@@ -1,9 +1,14 @@
 package com.matburt.mobileorg.OrgData;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
+import android.text.TextUtils;
 
 import com.matburt.mobileorg.OrgData.OrgContract.Edits;
 
@@ -22,6 +27,7 @@ public class OrgEdit {
 		ADDHEADING
 	};
 	
+	public long id = -1;
 	public TYPE type = null;
 	public String nodeId = "";
 	public String title = "";
@@ -56,6 +62,9 @@ public class OrgEdit {
 		if (cursor != null && cursor.getCount() > 0) {
 			if(cursor.isBeforeFirst() || cursor.isAfterLast())
 				cursor.moveToFirst();
+			int idColumn = cursor.getColumnIndex(Edits.ID);
+			if (idColumn != -1)
+				this.id = cursor.getLong(idColumn);
 			this.nodeId = cursor.getString(cursor.getColumnIndexOrThrow(Edits.DATA_ID));
 			this.title = cursor.getString(cursor.getColumnIndexOrThrow(Edits.TITLE));
 			this.oldValue = cursor.getString(cursor.getColumnIndexOrThrow(Edits.OLD_VALUE));
@@ -145,6 +154,104 @@ public class OrgEdit {
 		return result.toString();
 	}
 
+	/**
+	 * Shrinks the edits before they are pushed. Consecutive changes of the
+	 * same field of a node are folded into one edit from the first old to
+	 * the last new value, changes that end with the old value are dropped
+	 * and changes of nodes that are deleted later are left to the delete.
+	 * Folding stops at edits that move the node.
+	 */
+	public static void compactEdits(ContentResolver resolver) {
+		ArrayList<OrgEdit> edits = getEdits(resolver);
+
+		HashMap<String, Integer> lastDeletes = new HashMap<String, Integer>();
+		for (int i = 0; i < edits.size(); i++) {
+			if (edits.get(i).type == TYPE.DELETE)
+				lastDeletes.put(edits.get(i).nodeId, i);
+		}
+
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		HashMap<String, HashMap<TYPE, OrgEdit>> foldedEdits = new HashMap<String, HashMap<TYPE, OrgEdit>>();
+		ArrayList<OrgEdit> changedEdits = new ArrayList<OrgEdit>();
+		for (int i = 0; i < edits.size(); i++) {
+			OrgEdit edit = edits.get(i);
+			if (edit.isFieldEdit() == false) {
+				foldedEdits.remove(edit.nodeId);
+				continue;
+			}
+
+			Integer lastDelete = lastDeletes.get(edit.nodeId);
+			if (lastDelete != null && lastDelete > i) {
+				operations.add(newDeleteOperation(edit));
+				continue;
+			}
+
+			HashMap<TYPE, OrgEdit> nodeEdits = foldedEdits.get(edit.nodeId);
+			if (nodeEdits == null) {
+				nodeEdits = new HashMap<TYPE, OrgEdit>();
+				foldedEdits.put(edit.nodeId, nodeEdits);
+			}
+
+			OrgEdit previousEdit = nodeEdits.get(edit.type);
+			if (previousEdit != null
+					&& TextUtils.equals(previousEdit.newValue, edit.oldValue)) {
+				previousEdit.newValue = edit.newValue;
+				if (changedEdits.contains(previousEdit) == false)
+					changedEdits.add(previousEdit);
+				operations.add(newDeleteOperation(edit));
+			} else {
+				nodeEdits.put(edit.type, edit);
+				if (TextUtils.equals(edit.oldValue, edit.newValue))
+					changedEdits.add(edit);
+			}
+		}
+
+		for (OrgEdit edit : changedEdits) {
+			if (TextUtils.equals(edit.oldValue, edit.newValue))
+				operations.add(newDeleteOperation(edit));
+			else
+				operations.add(ContentProviderOperation
+						.newUpdate(Edits.buildIdUri(edit.id))
+						.withValue(Edits.NEW_VALUE, edit.newValue).build());
+		}
+
+		if (operations.isEmpty() == false)
+			OrgProviderUtils.applyBatch(operations, resolver);
+	}
+
+	private static ArrayList<OrgEdit> getEdits(ContentResolver resolver) {
+		Cursor cursor = resolver.query(Edits.CONTENT_URI,
+				Edits.DEFAULT_COLUMNS, null, null, Edits.ID + " ASC");
+		ArrayList<OrgEdit> edits = new ArrayList<OrgEdit>();
+		if (cursor == null)
+			return edits;
+
+		while (cursor.moveToNext())
+			edits.add(new OrgEdit(cursor));
+		cursor.close();
+		return edits;
+	}
+
+	private static ContentProviderOperation newDeleteOperation(OrgEdit edit) {
+		return ContentProviderOperation.newDelete(Edits.buildIdUri(edit.id)).build();
+	}
+
+	/**
+	 * @return Whether the edit changes a field of the node, without moving it.
+	 */
+	private boolean isFieldEdit() {
+		switch (type) {
+		case HEADING:
+		case TODO:
+		case PRIORITY:
+		case BODY:
+		case TAGS:
+			return true;
+		default:
+			return false;
+		}
+	}
+
 /** Legacy code for parsing edits */
 	// TODO Re-enable or delete parsing of edits
 //	private Pattern editTitlePattern = Pattern
@@ -21,6 +21,12 @@ public class OrgFile {
 	public String filename = "";
 	public String name = "";
 	public String checksum = "";
+	/**
+	 * Digest of the content that was parsed, computed with the algorithm of
+	 * the checksum. The checksum is taken from checksums.dat, which can be
+	 * out of date with the content.
+	 */
+	public String contentDigest = "";
 	public boolean includeInOutline = true;
 	public long id = -1;
 	public long nodeId = -1;
@@ -67,6 +73,7 @@ public class OrgFile {
 			this.name = cursor.getString(cursor.getColumnIndexOrThrow(Files.NAME));
 			this.filename = cursor.getString(cursor.getColumnIndexOrThrow(Files.FILENAME));
 			this.checksum = cursor.getString(cursor.getColumnIndexOrThrow(Files.CHECKSUM));
+			this.contentDigest = cursor.getString(cursor.getColumnIndexOrThrow(Files.CONTENT_DIGEST));
 			this.id = cursor.getLong(cursor.getColumnIndexOrThrow(Files.ID));
 			this.nodeId = cursor.getLong(cursor.getColumnIndexOrThrow(Files.NODE_ID));
 		} else {
@@ -118,6 +125,7 @@ public class OrgFile {
 		values.put(Files.FILENAME, filename);
 		values.put(Files.NAME, name);
 		values.put(Files.CHECKSUM, checksum);
+		values.put(Files.CONTENT_DIGEST, contentDigest);
 		values.put(Files.NODE_ID, nodeId);
 		
 		Uri uri = resolver.insert(Files.CONTENT_URI, values);
@@ -138,7 +146,18 @@ public class OrgFile {
 	}
 	
 	public long updateFile(ContentResolver resolver) {
-		return -1;
+		ContentValues values = new ContentValues();
+		values.put(Files.NAME, name);
+		values.put(Files.CHECKSUM, checksum);
+		values.put(Files.CONTENT_DIGEST, contentDigest);
+		long updated = resolver.update(Files.buildIdUri(id), values, null, null);
+		
+		if(includeInOutline && nodeId >= 0) {
+			ContentValues orgdata = new ContentValues();
+			orgdata.put(OrgData.NAME, name);
+			resolver.update(OrgData.buildIdUri(nodeId), orgdata, null, null);
+		}
+		return updated;
 	}
 	
 	public long removeFile(ContentResolver resolver) {
@@ -5,17 +5,19 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Stack;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.database.Cursor;
 import android.text.TextUtils;
-import android.util.Pair;
 
 import com.matburt.mobileorg.OrgData.OrgContract.OrgData;
 import com.matburt.mobileorg.util.OrgFileNotFoundException;
+import com.matburt.mobileorg.util.OrgNodeNotFoundException;
 import com.matburt.mobileorg.util.PreferenceUtils;
 
 public class OrgFileParser {
@@ -31,18 +33,45 @@ public class OrgFileParser {
 	private OrgNodeParser orgNodeParser;
 	private HashSet<String> excludedTags;
 	
+	private ExistingNodes existingNodes;
+	private OrgNode currentNode;
+	/** Olp links of the parsed nodes, cached once the file is written. */
+	private ArrayList<OrgNodeCache.OlpId> olpIds;
+	
 	public OrgFileParser(OrgDatabase db, ContentResolver resolver) {
 		this.db = db;
 		this.resolver = resolver;
 	}
 
 	private void init(OrgFile orgFile) {
-		orgFile.removeFile(resolver);
-		orgFile.addFile(resolver);
+		this.existingNodes = null;
+		
+		OrgFile existingFile = null;
+		try {
+			existingFile = new OrgFile(orgFile.filename, resolver);
+		} catch (OrgFileNotFoundException e) {}
+		
+		// The checksums are stored once the parse succeeded, a file that
+		// failed to parse is downloaded again
+		if (existingFile != null && isIncrementalParseSupported(orgFile)) {
+			orgFile.id = existingFile.id;
+			orgFile.nodeId = existingFile.nodeId;
+			this.existingNodes = new ExistingNodes(orgFile);
+		} else {
+			if (existingFile != null)
+				existingFile.removeFile(resolver);
+			OrgFile newFile = new OrgFile(orgFile.filename, orgFile.name, "");
+			newFile.includeInOutline = orgFile.includeInOutline;
+			newFile.addFile(resolver);
+			orgFile.id = newFile.id;
+			orgFile.nodeId = newFile.nodeId;
+		}
 		this.orgFile = orgFile;
 
 		this.parseStack = new ParseStack();
-		this.parseStack.add(0, orgFile.nodeId, "");
+		this.parseStack.add(0, orgFile.nodeId, "", "", null);
+		this.currentNode = null;
+		this.olpIds = new ArrayList<OrgNodeCache.OlpId>();
 		
 		this.payload = new StringBuilder();
 		
@@ -50,49 +79,114 @@ public class OrgFileParser {
 				OrgProviderUtils.getTodos(resolver));
 	}
 	
-	public void parse(OrgFile orgFile, BufferedReader breader, Context context) {
+	/**
+	 * Files that were parsed before are diffed against their existing
+	 * entries, which keeps the ids of unchanged nodes stable. The agenda file
+	 * is always parsed from scratch as block agendas rewrite its structure.
+	 */
+	private boolean isIncrementalParseSupported(OrgFile orgFile) {
+		return orgFile.filename.equals(OrgFile.AGENDA_FILE) == false;
+	}
+	
+	public void parse(OrgFile orgFile, BufferedReader breader, Context context)
+			throws IOException {
 		this.combineAgenda = PreferenceUtils.getCombineBlockAgendas();
 		this.excludedTags = PreferenceUtils.getExcludedTags();
 		
 		parse(orgFile, breader);
 	}
 	
-	public void parse(OrgFile orgFile, BufferedReader breader) {
+	public void parse(OrgFile orgFile, BufferedReader breader) throws IOException {
 		init(orgFile);
+		boolean successful = false;
+		// The whole file is one transaction, readers never see a half parsed
+		// file and a failed parse leaves the previous one in place
 		db.beginTransaction();
 		try {
 			String currentLine;
 			while ((currentLine = breader.readLine()) != null)
 				parseLine(currentLine);
 			
-			// Add payload to the final node
-			db.fastInsertNodePayload(parseStack.getCurrentNodeId(), this.payload.toString());
+			writeCurrentNode();
+			parseStack.popAll();
 
-		} catch (IOException e) {}
+			if (existingNodes != null)
+				existingNodes.deleteRemaining();
+			successful = true;
+		} finally {
+			if (successful)
+				db.endTransaction();
+			else
+				db.rollbackTransaction();
+			this.existingNodes = null;
+			// The parser writes to the database directly, bypassing OrgProvider
+			OrgNodeCache.clear();
+		}
 		
-		db.endTransaction();
+		orgFile.updateFile(resolver);
+		OrgNodeCache.putOlpIds(olpIds);
+		this.olpIds = null;
 
 		if(combineAgenda && orgFile.filename.equals(OrgFile.AGENDA_FILE)) {
 			try {
-				combineBlockAgendas();
+				combineBlockAgendas(orgFile);
 			} catch (OrgFileNotFoundException e) {}
 		}
+		
+		OrgChangeNotifier.notifyChange(OrgData.CONTENT_URI, resolver);
 	}
 
 	private void parseLine(String line) {
 		if (TextUtils.isEmpty(line))
 			return;
 
-		int numstars = numberOfStars(line);
+		int numstars = OrgNodeParser.numberOfStars(line);
 		if (numstars > 0) {
-			db.fastInsertNodePayload(parseStack.getCurrentNodeId(), this.payload.toString());
-			this.payload = new StringBuilder();
+			writeCurrentNode();
+			this.payload.setLength(0);
 			parseHeading(line, numstars);
 		} else {
 			payload.append(line).append("\n");
 		}
 	}
 	
+	/**
+	 * Headings are buffered until their payload is complete, which is when
+	 * the next heading or the end of the file is reached. This allows each
+	 * node to be written with a single statement.
+	 */
+	private void writeCurrentNode() {
+		final String payloadString = this.payload.toString();
+		
+		if (currentNode == null) { // Payload of file node
+			db.fastInsertNodePayload(parseStack.getCurrentNodeId(), payloadString);
+			return;
+		}
+		
+		currentNode.setPayload(payloadString);
+		
+		ExistingNode match = null;
+		if (existingNodes != null)
+			match = existingNodes.take(currentNode);
+		
+		if (match != null) {
+			currentNode.id = match.id;
+			if (match.contentHash != getContentHash(currentNode, payloadString))
+				db.fastUpdateNode(currentNode);
+		} else
+			currentNode.id = db.fastInsertNode(currentNode);
+		
+		if (existingNodes != null)
+			existingNodes.setLastChild(currentNode.parentId, currentNode.id);
+		
+		parseStack.setCurrentNodeId(currentNode.id);
+		olpIds.add(new OrgNodeCache.OlpId(currentNode.id, currentNode.parentId,
+				currentNode.name, parseStack.getCurrentOlpId()));
+		if (match != null)
+			parseStack.setCurrentStoredCounts(match.childCount, match.descendantCount);
+		this.currentNode = null;
+	}
+	
 	private void parseHeading(String thisLine, int numstars) {
 		if (numstars == parseStack.getCurrentLevel()) { // Node on same level
 			parseStack.pop();
@@ -105,31 +199,83 @@ public class OrgFileParser {
 		node.tags_inherited = parseStack.getCurrentTags();
 		node.fileId = orgFile.id;
 		node.parentId = parseStack.getCurrentNodeId();
-		long newId = db.fastInsertNode(node);
-		parseStack.add(numstars, newId, node.tags);      
-    }
+		node.path = parseStack.getCurrentChildPath();
+		String olpId = parseStack.getCurrentChildOlpId()
+				+ node.getStrippedNameForOlpPathLink();
 
-	private static final Pattern starPattern = Pattern.compile("^(\\**)\\s");
-	private static int numberOfStars(String thisLine) {
-		Matcher matcher = starPattern.matcher(thisLine);
-		if(matcher.find()) {
-			return matcher.end(1) - matcher.start(1);
-		} else
-			return 0;
+		this.currentNode = node;
+		parseStack.add(numstars, node.id, node.path, node.tags, olpId);
+    }
+	
+	/**
+	 * Hash of the parts of a node that can change without affecting the
+	 * identity of the node, that is everything but its name and position.
+	 */
+	private static long getContentHash(OrgNode node, String payload) {
+		long hash = 0xcbf29ce484222325L;
+		hash = hashString(hash, node.todo);
+		hash = hashString(hash, node.priority);
+		hash = hashString(hash, node.tags);
+		hash = hashString(hash, node.tags_inherited);
+		hash = hashString(hash, payload);
+		return hash;
 	}
 	
+	private static long hashString(long hash, String string) {
+		if (string != null) {
+			for (int i = 0; i < string.length(); i++) {
+				hash ^= string.charAt(i);
+				hash *= 0x100000001b3L;
+			}
+		}
+		hash ^= 0xffff; // Separator, so "ab"+"c" and "a"+"bc" differ
+		hash *= 0x100000001b3L;
+		return hash;
+	}
+
     
+	private static class ParseStackEntry {
+		public int level;
+		public long nodeId;
+		public String path;
+		/** Olp link of the node, null for the file node. */
+		public String olpId;
+		
+		public long childCount = 0;
+		public long descendantCount = 0;
+		/** Counts in the database, -1 if unknown. */
+		public long storedChildCount = 0;
+		public long storedDescendantCount = 0;
+		
+		public ParseStackEntry(int level, long nodeId, String path, String olpId) {
+			this.level = level;
+			this.nodeId = nodeId;
+			this.path = path;
+			this.olpId = olpId;
+		}
+	}
+	
+	/**
+	 * Stack of the ancestors of the current heading. Children and
+	 * descendants are counted as headings are added, the counts of a node
+	 * are written when it is popped off the stack.
+	 */
 	private class ParseStack {
-		private Stack<Pair<Integer, Long>> parseStack;
+		private Stack<ParseStackEntry> parseStack;
 		private Stack<String> tagStack;
 
 		public ParseStack() {
-			this.parseStack = new Stack<Pair<Integer, Long>>();
+			this.parseStack = new Stack<ParseStackEntry>();
 			this.tagStack = new Stack<String>();
 		}
 		
-		public void add(int level, long nodeId, String tags) {
-			parseStack.push(new Pair<Integer, Long>(level, nodeId));
+		public void add(int level, long nodeId, String path, String tags, String olpId) {
+			ParseStackEntry entry = new ParseStackEntry(level, nodeId, path, olpId);
+			if (parseStack.isEmpty()) { // File node might have been parsed before
+				entry.storedChildCount = -1;
+				entry.storedDescendantCount = -1;
+			}
+			parseStack.push(entry);
 			tagStack.push(stripTags(tags));
 		}
 		
@@ -151,17 +297,64 @@ public class OrgFileParser {
 			return result.toString();
 		}
 		
+		public void setCurrentNodeId(long nodeId) {
+			parseStack.peek().nodeId = nodeId;
+		}
+		
+		public void setCurrentStoredCounts(long childCount, long descendantCount) {
+			ParseStackEntry current = parseStack.peek();
+			current.storedChildCount = childCount;
+			current.storedDescendantCount = descendantCount;
+		}
+		
 		public void pop() {
-			this.parseStack.pop();
+			ParseStackEntry entry = this.parseStack.pop();
 			this.tagStack.pop();
+			
+			if (parseStack.isEmpty() == false) {
+				ParseStackEntry parent = parseStack.peek();
+				parent.childCount++;
+				parent.descendantCount += 1 + entry.descendantCount;
+			}
+			
+			if (entry.nodeId >= 0
+					&& (entry.childCount != entry.storedChildCount
+					|| entry.descendantCount != entry.storedDescendantCount))
+				db.fastUpdateNodeCounts(entry.nodeId, entry.childCount,
+						entry.descendantCount);
+		}
+		
+		public void popAll() {
+			while (parseStack.isEmpty() == false)
+				pop();
 		}
 		
 		public int getCurrentLevel() {
-			return parseStack.peek().first;
+			return parseStack.peek().level;
 		}
 		
 		public long getCurrentNodeId() {
-			return parseStack.peek().second;
+			return parseStack.peek().nodeId;
+		}
+		
+		public String getCurrentChildPath() {
+			ParseStackEntry current = parseStack.peek();
+			return OrgData.buildChildPath(current.path, current.nodeId);
+		}
+		
+		public String getCurrentOlpId() {
+			return parseStack.peek().olpId;
+		}
+		
+		/**
+		 * @return Olp link of the current node, ready to append the name of
+		 *         a child.
+		 */
+		public String getCurrentChildOlpId() {
+			String olpId = parseStack.peek().olpId;
+			if (olpId == null)
+				return "olp:" + orgFile.filename + ":";
+			return olpId + "/";
 		}
 		
 		public String getCurrentTags() {
@@ -170,44 +363,156 @@ public class OrgFileParser {
 	}
 	
 	
+	private static class ExistingNode {
+		public long id;
+		public long contentHash;
+		public long childCount;
+		public long descendantCount;
+		
+		public ExistingNode(long id, long contentHash, long childCount, long descendantCount) {
+			this.id = id;
+			this.contentHash = contentHash;
+			this.childCount = childCount;
+			this.descendantCount = descendantCount;
+		}
+	}
+	
+	/**
+	 * Nodes of a previously parsed file, indexed by their parent, level and
+	 * name. Parsed headings claim matching nodes in document order, nodes that
+	 * are never claimed are deleted when parsing is done.
+	 */
+	private class ExistingNodes {
+		private HashMap<String, LinkedList<ExistingNode>> nodes = new HashMap<String, LinkedList<ExistingNode>>();
+		private HashMap<Long, ExistingNode> remaining = new HashMap<Long, ExistingNode>();
+		private HashMap<Long, Long> lastChildIds = new HashMap<Long, Long>();
+		
+		public ExistingNodes(OrgFile orgFile) {
+			Cursor cursor = db.getFileNodes(orgFile.id, orgFile.nodeId);
+			try {
+				while (cursor.moveToNext()) {
+					OrgNode node = new OrgNode(cursor);
+					String payload = cursor.getString(cursor
+							.getColumnIndexOrThrow(OrgData.PAYLOAD));
+					ExistingNode existingNode = new ExistingNode(node.id,
+							getContentHash(node, payload), node.childCount,
+							node.descendantCount);
+					
+					String key = getKey(node.parentId, node.level, node.name);
+					LinkedList<ExistingNode> matches = nodes.get(key);
+					if (matches == null) {
+						matches = new LinkedList<ExistingNode>();
+						nodes.put(key, matches);
+					}
+					matches.add(existingNode);
+					remaining.put(node.id, existingNode);
+				}
+			} catch (OrgNodeNotFoundException e) {
+			} finally {
+				cursor.close();
+			}
+		}
+		
+		private String getKey(long parentId, long level, String name) {
+			return parentId + ":" + level + ":" + name;
+		}
+		
+		/**
+		 * Claims the existing node matching the given node. Children are
+		 * listed in id order, so a node is only reused if its id sorts after
+		 * the previous sibling.
+		 */
+		public ExistingNode take(OrgNode node) {
+			LinkedList<ExistingNode> matches = nodes.get(getKey(node.parentId,
+					node.level, node.name));
+			if (matches == null)
+				return null;
+			
+			Long lastChildId = lastChildIds.get(node.parentId);
+			while (matches.isEmpty() == false) {
+				ExistingNode match = matches.removeFirst();
+				if (lastChildId == null || match.id > lastChildId) {
+					remaining.remove(match.id);
+					return match;
+				}
+			}
+			return null;
+		}
+		
+		public void setLastChild(long parentId, long id) {
+			lastChildIds.put(parentId, id);
+		}
+		
+		public void deleteRemaining() {
+			for (Long id : remaining.keySet())
+				db.fastDeleteNode(id);
+		}
+	}
+	
+	
 	public static final String BLOCK_SEPARATOR_PREFIX = "#HEAD#";	
-	private void combineBlockAgendas() throws OrgFileNotFoundException {		
+	/**
+	 * Regroups the agenda file in one transaction. The nodes are read through
+	 * the parser's own connection, as the provider can't read while the
+	 * transaction is open.
+	 */
+	private void combineBlockAgendas(OrgFile orgFile) throws OrgFileNotFoundException {		
 		OrgNode agendaFile = OrgProviderUtils.getOrgNodeFromFilename(
 				OrgFile.AGENDA_FILE, resolver);
 		
 		String previousAgendaBlockTitle = "";
 		OrgNode previousBlockNode = null;
 		
-		for(OrgNode node: agendaFile.getChildren(resolver)) {
-			if(node.name.indexOf(">") == -1)
-				continue;
-			
-			String agendaBlockName = node.name.substring(0, node.name.indexOf(">"));
-			String blockEntryName = node.name.substring(node.name.indexOf(">") + 1);
-			
-			if(TextUtils.isEmpty(agendaBlockName) == false) { // Is a block agenda
-				if(agendaBlockName.equals(previousAgendaBlockTitle) == false) { // Create new node to contain block agenda	
-					previousAgendaBlockTitle = agendaBlockName;
-
-					previousBlockNode = new OrgNode();
-					previousBlockNode.fileId = agendaFile.fileId;
-					previousBlockNode.name = agendaBlockName;
-					previousBlockNode.parentId = agendaFile.id;
-					previousBlockNode.level = agendaFile.level + 1;
-					previousBlockNode.id = db.fastInsertNode(previousBlockNode);
-				}
+		boolean successful = false;
+		db.beginTransaction();
+		try {
+			for(OrgNode node: getChildren(agendaFile)) {
+				if(node.name.indexOf(">") == -1)
+					continue;
 				
-				ArrayList<OrgNode> children = node.getChildren(resolver);
-				if(blockEntryName.startsWith("Day-agenda") || blockEntryName.startsWith("Week-agenda")) {
-					for(OrgNode child: children)
-						cloneChildren(child, previousBlockNode, child.name);
-				} else
-					cloneChildren(node, previousBlockNode, blockEntryName); // Normal cloning
+				String agendaBlockName = node.name.substring(0, node.name.indexOf(">"));
+				String blockEntryName = node.name.substring(node.name.indexOf(">") + 1);
 				
-				resolver.delete(OrgData.buildIdUri(node.id), null, null);
+				if(TextUtils.isEmpty(agendaBlockName) == false) { // Is a block agenda
+					if(agendaBlockName.equals(previousAgendaBlockTitle) == false) { // Create new node to contain block agenda	
+						previousAgendaBlockTitle = agendaBlockName;
+
+						previousBlockNode = new OrgNode();
+						previousBlockNode.fileId = agendaFile.fileId;
+						previousBlockNode.name = agendaBlockName;
+						previousBlockNode.parentId = agendaFile.id;
+						previousBlockNode.level = agendaFile.level + 1;
+						previousBlockNode.id = db.fastInsertNode(previousBlockNode);
+					}
+					
+					ArrayList<OrgNode> children = getChildren(node);
+					if(blockEntryName.startsWith("Day-agenda") || blockEntryName.startsWith("Week-agenda")) {
+						for(OrgNode child: children)
+							cloneChildren(child, previousBlockNode, child.name);
+					} else
+						cloneChildren(node, previousBlockNode, blockEntryName); // Normal cloning
+					
+					db.fastDeleteSubtree(node.id, node.path);
+				}
 			}
+			
+			db.updateFileTree(orgFile.id, orgFile.nodeId);
+			successful = true;
+		} finally {
+			if (successful)
+				db.endTransaction();
+			else
+				db.rollbackTransaction();
+			OrgNodeCache.clear();
 		}
 	}
+	
+	private ArrayList<OrgNode> getChildren(OrgNode node) {
+		Cursor cursor = db.getChildNodes(node.id);
+		ArrayList<OrgNode> children = OrgProviderUtils.orgDataCursorToArrayList(cursor);
+		cursor.close();
+		return children;
+	}
 
 	private void cloneChildren(OrgNode node, OrgNode parent, String blockTitle) {
 		OrgNode blockSeparator = new OrgNode();
@@ -217,14 +522,12 @@ public class OrgFileParser {
 		blockSeparator.level = parent.level + 1;
 		db.fastInsertNode(blockSeparator);
 		
-		for(OrgNode child: node.getChildren(resolver)) {
+		for(OrgNode child: getChildren(node)) {
 			OrgNode clonedChild = new OrgNode(child);
 			clonedChild.parentId = parent.id;
 			clonedChild.fileId = parent.fileId;
 			clonedChild.level = parent.level + 1;
-			long id = db.fastInsertNode(clonedChild);
-			db.fastInsertNodePayload(id, child.getPayload());
-			resolver.delete(OrgData.buildIdUri(node.id), null, null);
+			db.fastInsertNode(clonedChild);
 		}
 	}
     
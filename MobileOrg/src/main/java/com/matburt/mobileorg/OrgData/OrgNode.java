@@ -33,7 +33,15 @@ public class OrgNode {
 	public String tags = "";
 	public String tags_inherited = "";
 	public String name = "";
+	/** Null until loaded for nodes read without their payload. */
 	private String payload = "";
+	private ContentResolver payloadResolver = null;
+	
+	/** Number of children and descendants in the database, -1 if unknown. */
+	public long childCount = -1;
+	public long descendantCount = -1;
+	/** Ids of the ancestors, see {@link OrgData#buildChildPath(String, long)}. */
+	public String path = "";
 	
 	private OrgNodePayload orgNodePayload = null;
 
@@ -51,18 +59,38 @@ public class OrgNode {
 	}
 	
 	public OrgNode(long id, ContentResolver resolver) throws OrgNodeNotFoundException {
+		OrgNode cachedNode = OrgNodeCache.getNode(id);
+		if (cachedNode != null) {
+			set(cachedNode);
+			return;
+		}
+		
+		long generation = OrgNodeCache.getGeneration();
 		Cursor cursor = resolver.query(OrgData.buildIdUri(id),
 				OrgData.DEFAULT_COLUMNS, null, null, null);
-		if(cursor == null || cursor.moveToFirst() == false)
+		if(cursor == null || cursor.moveToFirst() == false) {
+			if (cursor != null)
+				cursor.close();
 			throw new OrgNodeNotFoundException("Node with id \"" + id + "\" not found");
+		}
 		set(cursor);
 		cursor.close();
+		OrgNodeCache.putNode(this, generation);
 	}
 
 	public OrgNode(Cursor cursor) throws OrgNodeNotFoundException {
 		set(cursor);
 	}
 	
+	/**
+	 * If the cursor doesn't contain the payload, it is read with the resolver
+	 * the first time it is needed.
+	 */
+	public OrgNode(Cursor cursor, ContentResolver resolver) throws OrgNodeNotFoundException {
+		set(cursor);
+		this.payloadResolver = resolver;
+	}
+	
 	public void set(Cursor cursor) throws OrgNodeNotFoundException {
 		if (cursor != null && cursor.getCount() > 0) {
 			if(cursor.isBeforeFirst() || cursor.isAfterLast())
@@ -80,17 +108,51 @@ public class OrgNode {
 			tags_inherited = cursor.getString(cursor
 					.getColumnIndexOrThrow(OrgData.TAGS_INHERITED));
 			name = cursor.getString(cursor.getColumnIndexOrThrow(OrgData.NAME));
-			payload = cursor.getString(cursor
-					.getColumnIndexOrThrow(OrgData.PAYLOAD));
+			int payloadColumn = cursor.getColumnIndex(OrgData.PAYLOAD);
+			if (payloadColumn >= 0)
+				payload = cursor.isNull(payloadColumn) ? "" : cursor.getString(payloadColumn);
+			else
+				payload = null;
+			orgNodePayload = null;
+			
+			int childCountColumn = cursor.getColumnIndex(OrgData.CHILD_COUNT);
+			if (childCountColumn >= 0)
+				childCount = cursor.getLong(childCountColumn);
+			int descendantCountColumn = cursor.getColumnIndex(OrgData.DESCENDANT_COUNT);
+			if (descendantCountColumn >= 0)
+				descendantCount = cursor.getLong(descendantCountColumn);
+			int pathColumn = cursor.getColumnIndex(OrgData.PATH);
+			if (pathColumn >= 0)
+				path = cursor.getString(pathColumn);
 		} else {
 			throw new OrgNodeNotFoundException(
 					"Failed to create OrgNode from cursor");
 		}	
 	}
 	
+	/**
+	 * Copies the node, including its id and position.
+	 */
+	public void set(OrgNode node) {
+		id = node.id;
+		parentId = node.parentId;
+		fileId = node.fileId;
+		level = node.level;
+		priority = node.priority;
+		todo = node.todo;
+		tags = node.tags;
+		tags_inherited = node.tags_inherited;
+		name = node.name;
+		payload = node.orgNodePayload != null ? node.orgNodePayload.get() : node.payload;
+		payloadResolver = node.payloadResolver;
+		childCount = node.childCount;
+		descendantCount = node.descendantCount;
+		path = node.path;
+	}
+	
 	public String getFilename(ContentResolver resolver) {
 		try {
-			OrgFile file = new OrgFile(fileId, resolver);
+			OrgFile file = getOrgFile(resolver);
 			return file.filename;
 		} catch (OrgFileNotFoundException e) {
 			return "";
@@ -98,7 +160,13 @@ public class OrgNode {
 	}
 	
 	public OrgFile getOrgFile(ContentResolver resolver) throws OrgFileNotFoundException {
-		return new OrgFile(fileId, resolver);
+		OrgFile file = OrgNodeCache.getFile(fileId);
+		if (file == null) {
+			long generation = OrgNodeCache.getGeneration();
+			file = new OrgFile(fileId, resolver);
+			OrgNodeCache.putFile(file, generation);
+		}
+		return file;
 	}
 	
 	public void setFilename(String filename, ContentResolver resolver) throws OrgFileNotFoundException {
@@ -108,7 +176,7 @@ public class OrgNode {
 	
 	private void preparePayload() {
 		if(this.orgNodePayload == null)
-			this.orgNodePayload = new OrgNodePayload(this.payload);
+			this.orgNodePayload = new OrgNodePayload(getStoredPayload());
 	}
 	
 	public void write(ContentResolver resolver) {
@@ -133,9 +201,8 @@ public class OrgNode {
 		
 		String nodeId = getNodeId(resolver);
 		if (nodeId.startsWith("olp:") == false) { // Update all nodes that have this :ID:
-			String nodeIdQuery = "%" + nodeId + "%";
 			resolver.update(OrgData.CONTENT_URI, getSimpleContentValues(),
-					OrgData.PAYLOAD + " LIKE ?", new String[] { nodeIdQuery });
+					OrgData.ORG_ID + "=?", new String[] { nodeId });
 		}
 	}
 	
@@ -147,16 +214,12 @@ public class OrgNode {
 			return this;
 		
 		String nodeId = getNodeId(resolver);
-		if (nodeId.startsWith("olp:") == false) { // Update all nodes that have this :ID:
-			String nodeIdQuery = OrgData.PAYLOAD + " LIKE '%" + nodeId + "%'";
-			try {
-				OrgFile agendaFile = new OrgFile(OrgFile.AGENDA_FILE, resolver);
-				if(agendaFile != null)
-					nodeIdQuery += " AND NOT " + OrgData.FILE_ID + "=" + agendaFile.nodeId;
-			} catch (OrgFileNotFoundException e) {}
+		if (nodeId.startsWith("olp:") == false) { // Find the node with the :ID: of this :ORIGINAL_ID:
+			String nodeIdQuery = OrgData.ORG_ID + "=? AND " + OrgData.FILE_ID + "<>?";
+			String[] nodeIdArgs = new String[] { nodeId, Long.toString(fileId) };
 			
 			Cursor query = resolver.query(OrgData.CONTENT_URI,
-					OrgData.DEFAULT_COLUMNS, nodeIdQuery, null,
+					OrgData.DEFAULT_COLUMNS, nodeIdQuery, nodeIdArgs,
 					null);
 			try {
 				OrgNode node = new OrgNode(query);
@@ -180,27 +243,60 @@ public class OrgNode {
 		ContentValues values = new ContentValues();
 		values.put(OrgData.NAME, name);
 		values.put(OrgData.TODO, todo);
-		values.put(OrgData.PAYLOAD, payload);
+		values.put(OrgData.PAYLOAD, getStoredPayload());
 		values.put(OrgData.PRIORITY, priority);
 		values.put(OrgData.TAGS, tags);
 		values.put(OrgData.TAGS_INHERITED, tags_inherited);
+		putDateValues(values, values.getAsString(OrgData.PAYLOAD));
+		putOrgIdValue(values, values.getAsString(OrgData.PAYLOAD));
 		return values;
 	}
 	
-	private ContentValues getContentValues() {
+	ContentValues getContentValues() {
 		ContentValues values = new ContentValues();
 		values.put(OrgData.NAME, name);
 		values.put(OrgData.TODO, todo);
 		values.put(OrgData.FILE_ID, fileId);
 		values.put(OrgData.LEVEL, level);
 		values.put(OrgData.PARENT_ID, parentId);
-		values.put(OrgData.PAYLOAD, payload);
+		values.put(OrgData.PAYLOAD, getStoredPayload());
 		values.put(OrgData.PRIORITY, priority);
 		values.put(OrgData.TAGS, tags);
 		values.put(OrgData.TAGS_INHERITED, tags_inherited);
+		putDateValues(values, values.getAsString(OrgData.PAYLOAD));
+		putOrgIdValue(values, values.getAsString(OrgData.PAYLOAD));
 		return values;
 	}
 	
+	/**
+	 * Adds the {@link OrgData#DATE_COLUMNS} of the payload. Most payloads
+	 * have no dates, those aren't parsed.
+	 */
+	static void putDateValues(ContentValues values, String payload) {
+		if (payload == null || payload.indexOf('<') == -1) {
+			for (String column : OrgData.DATE_COLUMNS)
+				values.putNull(column);
+			return;
+		}
+		
+		new OrgNodePayload(payload).putDateValues(values);
+	}
+	
+	/**
+	 * Adds the :ID: or :ORIGINAL_ID: property of the payload as
+	 * {@link OrgData#ORG_ID}, null if it has none.
+	 */
+	static void putOrgIdValue(ContentValues values, String payload) {
+		String orgId = null;
+		if (payload != null && payload.indexOf("ID:") != -1)
+			orgId = new OrgNodePayload(payload).getId();
+		
+		if (TextUtils.isEmpty(orgId))
+			values.putNull(OrgData.ORG_ID);
+		else
+			values.put(OrgData.ORG_ID, orgId);
+	}
+	
 
 	/**
 	 * This will split up the tag string that it got from the tag entry in the
@@ -251,32 +347,28 @@ public class OrgNode {
 	}
 	
 	public boolean hasChildren(ContentResolver resolver) {
-		Cursor childCursor = resolver.query(OrgData.buildChildrenUri(id),
-				OrgData.DEFAULT_COLUMNS, null, null, null);
-		
-		int childCount = childCursor.getCount();
-		childCursor.close();
-		
-		if(childCount > 0)
-			return true;
-		else
-			return false;
+		if (childCount >= 0)
+			return childCount > 0;
+		return hasChildren(id, resolver);
 	}
 	
 	public static boolean hasChildren (long node_id, ContentResolver resolver) {
-		try {
-			OrgNode node = new OrgNode(node_id, resolver);
-			return node.hasChildren(resolver);
-		} catch (OrgNodeNotFoundException e) {
-		}
+		OrgNode cachedNode = OrgNodeCache.getNode(node_id);
+		if (cachedNode != null && cachedNode.childCount >= 0)
+			return cachedNode.childCount > 0;
+
+		Cursor cursor = resolver.query(OrgData.buildIdUri(node_id),
+				new String[] { OrgData.CHILD_COUNT }, null, null, null);
+		if (cursor == null)
+			return false;
 		
-		return false;
+		boolean hasChildren = cursor.moveToFirst() && cursor.getLong(0) > 0;
+		cursor.close();
+		return hasChildren;
 	}
 	
 	public OrgNode getParent(ContentResolver resolver) throws OrgNodeNotFoundException {
-		Cursor cursor = resolver.query(OrgData.buildIdUri(this.parentId),
-				OrgData.DEFAULT_COLUMNS, null, null, null);
-		return new OrgNode(cursor);
+		return new OrgNode(this.parentId, resolver);
 	}
 	
 	public ArrayList<String> getSiblingsStringArray(ContentResolver resolver) {
@@ -296,7 +388,7 @@ public class OrgNode {
 	
 	public boolean isFilenode(ContentResolver resolver) {
 		try {
-			OrgFile file = new OrgFile(fileId, resolver);
+			OrgFile file = getOrgFile(resolver);
 			if(file.nodeId == this.id)
 				return true;
 		} catch (OrgFileNotFoundException e) {}
@@ -363,8 +455,22 @@ public class OrgNode {
 			return getOlpId(resolver);
 	}
 	
+	/**
+	 * Olp links are cached, a node whose parent link is cached only needs
+	 * its own name.
+	 */
 	public String getOlpId(ContentResolver resolver) {
-		StringBuilder result = new StringBuilder();
+		String olpId = OrgNodeCache.getOlpId(this);
+		if (olpId != null)
+			return olpId;
+
+		long generation = OrgNodeCache.getGeneration();
+		String parentOlpId = OrgNodeCache.getOlpId(parentId);
+		if (parentOlpId != null) {
+			olpId = parentOlpId + "/" + getStrippedNameForOlpPathLink();
+			OrgNodeCache.putOlpId(this, olpId, generation);
+			return olpId;
+		}
 		
 		ArrayList<OrgNode> nodesFromRoot;
 		try {
@@ -384,20 +490,26 @@ public class OrgNode {
 			
 		OrgNode topNode = nodesFromRoot.get(0);
 		nodesFromRoot.remove(0);
+		StringBuilder result = new StringBuilder();
 		result.append("olp:" + topNode.getFilename(resolver) + ":");
 		
-		for(OrgNode node: nodesFromRoot)
-			result.append(node.getStrippedNameForOlpPathLink() + "/");
+		for(OrgNode node: nodesFromRoot) {
+			result.append(node.getStrippedNameForOlpPathLink());
+			OrgNodeCache.putOlpId(node, result.toString(), generation);
+			result.append("/");
+		}
 		
 		result.append(getStrippedNameForOlpPathLink());
-		return result.toString();
+		olpId = result.toString();
+		OrgNodeCache.putOlpId(this, olpId, generation);
+		return olpId;
 	}
 	
 	/**
 	 * Olp paths containing certain symbols can't be applied by org-mode. To
 	 * prevent node names from injecting bad symbols, we strip them out here.
 	 */
-	private String getStrippedNameForOlpPathLink() {
+	String getStrippedNameForOlpPathLink() {
 		String result = this.name;
 		result = result.replaceAll("\\[[^\\]]*\\]", ""); // Strip out "[*]"
 		return result;
@@ -410,9 +522,31 @@ public class OrgNode {
 	}
 	
 	public String getPayload() {
-		preparePayload();
+		if(this.orgNodePayload == null)
+			return getStoredPayload();
 		return this.orgNodePayload.get();
 	}
+	
+	private String getStoredPayload() {
+		if (this.payload == null && this.id >= 0)
+			this.payload = queryPayload();
+		return this.payload != null ? this.payload : "";
+	}
+	
+	private String queryPayload() {
+		ContentResolver resolver = this.payloadResolver;
+		if (resolver == null)
+			resolver = MobileOrgApplication.getContext().getContentResolver();
+		
+		Cursor cursor = resolver.query(OrgData.buildIdUri(id),
+				new String[] { OrgData.PAYLOAD }, null, null, null);
+		if (cursor == null)
+			return "";
+		
+		String result = cursor.moveToFirst() ? cursor.getString(0) : null;
+		cursor.close();
+		return result != null ? result : "";
+	}
 
     public HashMap getPropertiesPayload() {
         preparePayload();
@@ -541,7 +675,8 @@ public class OrgNode {
 			result.append(" ").append(":" + tags + ":");
 		
 
-		if (payload != null && TextUtils.isEmpty(payload) == false)
+		String payload = getStoredPayload();
+		if (TextUtils.isEmpty(payload) == false)
 			result.append("\n").append(payload);
 
 		return result.toString();
@@ -550,7 +685,7 @@ public class OrgNode {
 	public boolean equals(OrgNode node) {
 		if (name.equals(node.name) && tags.equals(node.tags)
 				&& priority.equals(node.priority) && todo.equals(node.todo)
-				&& payload.equals(node.payload))
+				&& getStoredPayload().equals(node.getStoredPayload()))
 			return true;
 		else
 			return false;
@@ -560,16 +695,27 @@ public class OrgNode {
 	public void deleteNode(ContentResolver resolver) {
 		OrgEdit edit = new OrgEdit(this, OrgEdit.TYPE.DELETE, resolver);
 		edit.write(resolver);
-		resolver.delete(OrgData.buildIdUri(id), null, null);
+		deleteSubtree(resolver);
 	}
 	
 	public OrgEdit archiveNode(ContentResolver resolver) {
 		OrgEdit edit = new OrgEdit(this, OrgEdit.TYPE.ARCHIVE, resolver);
 		edit.write(resolver);
-		resolver.delete(OrgData.buildIdUri(id), null, null);
+		deleteSubtree(resolver);
 		return edit;
 	}
 	
+	/**
+	 * Deletes the node together with its descendants.
+	 */
+	private void deleteSubtree(ContentResolver resolver) {
+		String[] subtreeArgs = OrgData.buildSubtreeSelectionArgs(OrgData
+				.buildChildPath(path, id));
+		resolver.delete(OrgData.CONTENT_URI, OrgData.ID + "=? OR ("
+				+ OrgData.SUBTREE_SELECTION + ")", new String[] {
+				Long.toString(id), subtreeArgs[0], subtreeArgs[1] });
+	}
+	
 	public OrgEdit archiveNodeToSibling(ContentResolver resolver) {
 		OrgEdit edit = new OrgEdit(this, OrgEdit.TYPE.ARCHIVE_SIBLING, resolver);
 		edit.write(resolver);
@@ -0,0 +1,299 @@
+package com.matburt.mobileorg.OrgData;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ContentValues;
+
+import com.matburt.mobileorg.OrgData.OrgContract.OrgData;
+
+/**
+ * Process wide cache of the outline. It holds node snapshots keyed by id, the
+ * ids of the children of a node, the olp links of nodes, file names and the
+ * todo keywords.
+ *
+ * The maps evict their least recently used entries when full.
+ * {@link OrgProvider} invalidates entries when the database changes through
+ * it, everything writing to the database directly has to call
+ * {@link #clear()}.
+ *
+ * Nodes are copied going in and out, so callers can't modify cached nodes.
+ *
+ * Readers call {@link #getGeneration()} before querying the database and pass
+ * the result when they put what they read. An invalidation in between means
+ * the result may be stale, it is then not cached.
+ */
+public class OrgNodeCache {
+	private static final int MAX_NODES = 2000;
+	private static final int MAX_CHILD_LISTS = 500;
+	private static final int MAX_FILES = 100;
+	private static final int MAX_OLP_IDS = 5000;
+
+	private static final LruMap<Long, OrgNode> nodes = new LruMap<Long, OrgNode>(MAX_NODES);
+	private static final LruMap<Long, long[]> children = new LruMap<Long, long[]>(MAX_CHILD_LISTS);
+	private static final LruMap<Long, OrgFile> files = new LruMap<Long, OrgFile>(MAX_FILES);
+	private static final LruMap<Long, OlpId> olpIds = new LruMap<Long, OlpId>(MAX_OLP_IDS);
+	/** Maps todo keywords to whether they are done, null if not loaded. */
+	private static HashMap<String, Boolean> todos = null;
+	/** Incremented on every invalidation. */
+	private static long generation = 0;
+
+	private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 1L;
+		private final int maxSize;
+
+		public LruMap(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > maxSize;
+		}
+	}
+
+	/**
+	 * Olp link of a node together with the name and parent it was built
+	 * from. The link of a node changes with the name or position of the node
+	 * or any of its ancestors.
+	 */
+	static class OlpId {
+		public final long id;
+		public final long parentId;
+		public final String name;
+		public final String olpId;
+
+		public OlpId(long id, long parentId, String name, String olpId) {
+			this.id = id;
+			this.parentId = parentId;
+			this.name = name;
+			this.olpId = olpId;
+		}
+	}
+
+	public static synchronized long getGeneration() {
+		return generation;
+	}
+
+	public static synchronized OrgNode getNode(long id) {
+		OrgNode node = nodes.get(id);
+		return node != null ? copy(node) : null;
+	}
+
+	public static synchronized void putNode(OrgNode node, long generation) {
+		if (node.id >= 0 && generation == OrgNodeCache.generation)
+			nodes.put(node.id, copy(node));
+	}
+
+	/**
+	 * @return The children of the node or null if they are not cached.
+	 */
+	public static synchronized ArrayList<OrgNode> getChildren(long parentId) {
+		long[] childIds = children.get(parentId);
+		if (childIds == null)
+			return null;
+
+		ArrayList<OrgNode> result = new ArrayList<OrgNode>(childIds.length);
+		for (long childId : childIds) {
+			OrgNode child = nodes.get(childId);
+			if (child == null)
+				return null;
+			result.add(copy(child));
+		}
+		return result;
+	}
+
+	public static synchronized void putChildren(long parentId,
+			ArrayList<OrgNode> childNodes, long generation) {
+		if (generation != OrgNodeCache.generation)
+			return;
+
+		long[] childIds = new long[childNodes.size()];
+		for (int i = 0; i < childIds.length; i++) {
+			OrgNode child = childNodes.get(i);
+			childIds[i] = child.id;
+			nodes.put(child.id, copy(child));
+		}
+		children.put(parentId, childIds);
+	}
+
+	public static synchronized OrgFile getFile(long fileId) {
+		OrgFile file = files.get(fileId);
+		return file != null ? copy(file) : null;
+	}
+
+	public static synchronized void putFile(OrgFile file, long generation) {
+		if (generation == OrgNodeCache.generation)
+			files.put(file.id, copy(file));
+	}
+
+	/**
+	 * @return Map of todo keyword to whether it is done, null if not cached.
+	 *         The map is shared and must not be modified.
+	 */
+	public static synchronized HashMap<String, Boolean> getTodos() {
+		return todos;
+	}
+
+	public static synchronized void putTodos(HashMap<String, Boolean> todos,
+			long generation) {
+		if (generation == OrgNodeCache.generation)
+			OrgNodeCache.todos = todos;
+	}
+
+	/**
+	 * @return The olp link of the node, null if it is not cached or the node
+	 *         was renamed or moved since.
+	 */
+	public static synchronized String getOlpId(OrgNode node) {
+		OlpId olpId = olpIds.get(node.id);
+		if (olpId == null || olpId.parentId != node.parentId
+				|| olpId.name.equals(node.name) == false)
+			return null;
+		return olpId.olpId;
+	}
+
+	/**
+	 * @return The olp link of the node with the given id, null if not cached.
+	 */
+	public static synchronized String getOlpId(long id) {
+		OlpId olpId = olpIds.get(id);
+		return olpId != null ? olpId.olpId : null;
+	}
+
+	public static synchronized void putOlpId(OrgNode node, String olpId,
+			long generation) {
+		if (node.id >= 0 && generation == OrgNodeCache.generation)
+			olpIds.put(node.id, new OlpId(node.id, node.parentId, node.name, olpId));
+	}
+
+	/**
+	 * Used by the parser, which wrote the nodes itself.
+	 */
+	static synchronized void putOlpIds(Collection<OlpId> ids) {
+		for (OlpId olpId : ids)
+			olpIds.put(olpId.id, olpId);
+	}
+
+	/**
+	 * Invalidates a node that was inserted, updated or deleted. Values are
+	 * the new values of the node, if known.
+	 */
+	public static synchronized void invalidateNode(long id, ContentValues values) {
+		generation++;
+		if (values == null)
+			olpIds.remove(id); // Descendants are deleted with the node
+		else if (changesOlpIds(id, values))
+			olpIds.clear();
+
+		OrgNode node = nodes.remove(id);
+		if (node != null)
+			children.remove(node.parentId);
+		else
+			removeChildListsContaining(id);
+
+		if (values != null && values.containsKey(OrgData.PARENT_ID)) {
+			Long parentId = values.getAsLong(OrgData.PARENT_ID);
+			if (parentId != null)
+				children.remove(parentId);
+		}
+
+		children.remove(id);
+	}
+
+	/**
+	 * Renaming or moving a node changes the olp links of its descendants,
+	 * which aren't known here.
+	 */
+	private static boolean changesOlpIds(long id, ContentValues values) {
+		boolean hasName = values.containsKey(OrgData.NAME);
+		boolean hasParentId = values.containsKey(OrgData.PARENT_ID);
+		if (hasName == false && hasParentId == false)
+			return false;
+
+		String name;
+		long parentId;
+		OlpId olpId = olpIds.get(id);
+		OrgNode node = nodes.get(id);
+		if (olpId != null) {
+			name = olpId.name;
+			parentId = olpId.parentId;
+		} else if (node != null) {
+			name = node.name;
+			parentId = node.parentId;
+		} else
+			return true;
+
+		if (hasName && name.equals(values.getAsString(OrgData.NAME)) == false)
+			return true;
+		Long newParentId = values.getAsLong(OrgData.PARENT_ID);
+		return hasParentId && (newParentId == null || newParentId != parentId);
+	}
+
+	private static void removeChildListsContaining(long id) {
+		Iterator<long[]> iterator = children.values().iterator();
+		while (iterator.hasNext()) {
+			for (long childId : iterator.next()) {
+				if (childId == id) {
+					iterator.remove();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops the given nodes, for example after their counts changed.
+	 */
+	public static synchronized void invalidateNodes(Collection<Long> ids) {
+		generation++;
+		for (Long id : ids)
+			nodes.remove(id);
+	}
+
+	public static synchronized void invalidateNodes() {
+		generation++;
+		nodes.clear();
+		children.clear();
+		olpIds.clear();
+	}
+
+	public static synchronized void invalidateFiles() {
+		generation++;
+		files.clear();
+	}
+
+	public static synchronized void invalidateTodos() {
+		generation++;
+		todos = null;
+	}
+
+	public static synchronized void clear() {
+		invalidateNodes();
+		invalidateFiles();
+		invalidateTodos();
+	}
+
+	/**
+	 * Copies the node without loading its payload.
+	 */
+	private static OrgNode copy(OrgNode node) {
+		OrgNode copy = new OrgNode();
+		copy.set(node);
+		return copy;
+	}
+
+	private static OrgFile copy(OrgFile file) {
+		OrgFile copy = new OrgFile(file.filename, file.name, file.checksum);
+		copy.contentDigest = file.contentDigest;
+		copy.id = file.id;
+		copy.nodeId = file.nodeId;
+		copy.includeInOutline = file.includeInOutline;
+		return copy;
+	}
+}
@@ -1,74 +1,288 @@
 package com.matburt.mobileorg.OrgData;
 
 import java.util.ArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import android.util.Log;
 
+/**
+ * Single pass lexer for org headings. It splits a heading into todo keyword,
+ * priority, title and tags and understands the habit markers and the
+ * &lt;before&gt;/&lt;after&gt; blocks that org-mobile adds to agenda titles.
+ *
+ * The result is the same as matching the heading against
+ *
+ * <pre>
+ * ^\s?(?:(TODO|...)\s)?(?:\[\#([^]]+)\]\s)?(.*?)\s*(?::([^\s]+):)?(?:\s*[!\*])*
+ * (?:&lt;before&gt;.*&lt;/before&gt;)?(?:&lt;after&gt;.*TITLE:(.*)&lt;/after&gt;)?$
+ * </pre>
+ *
+ * which this class used to do, except that todo keywords are always matched
+ * literally and Unicode line separators are treated as ordinary characters.
+ */
 public class OrgNodeParser {
-	private static final int TODO_GROUP = 1;
-	private static final int PRIORITY_GROUP = 2;
-	private static final int NAME_GROUP = 3;
-	private static final int TAGS_GROUP = 4;
-	private static final int AFTER_GROUP = 5;
-
-	private Pattern pattern;
-
-	private static final String patternStart = "^\\s?";
-	private static final String patternEnd = "(?:\\[\\#([^]]+)\\]\\s)?" + // Priority
-			"(.*?)" + // Title
-			"\\s*" + "(?::([^\\s]+):)?" + // Tags (without trailing spaces)
-			"(?:\\s*[!\\*])*" + // Habits
-			"(?:<before>.*</before>)?" + // Before
-			"(?:<after>.*TITLE:(.*)</after>)?" + // After
-			"$"; // End of line
+	private static final String BEFORE_START = "<before>";
+	private static final String BEFORE_END = "</before>";
+	private static final String AFTER_START = "<after>";
+	private static final String AFTER_END = "</after>";
+	private static final String AFTER_TITLE = "TITLE:";
 
-	public OrgNodeParser(ArrayList<String> todos) {
-		final String patternString = patternStart + "(?:("
-				+ getTodoRegex(todos) + ")\\s)?" + patternEnd;
-		this.pattern = Pattern.compile(patternString);
-	}
+	private final TodoTrie todos = new TodoTrie();
 
-	private String getTodoRegex(ArrayList<String> todos) {
+	public OrgNodeParser(ArrayList<String> todos) {
 		if (todos.isEmpty())
-			return "";
+			this.todos.add("");
 
-		StringBuilder result = new StringBuilder();
 		for (String todo : todos)
-			result.append(todo).append("|");
-		result.deleteCharAt(result.length() - 1);
+			this.todos.add(todo);
+	}
+
+	/**
+	 * @return Number of stars at the beginning of the line, or 0 if the line
+	 *         is not a heading.
+	 */
+	public static int numberOfStars(String line) {
+		final int length = line.length();
+		int stars = 0;
+		while (stars < length && line.charAt(stars) == '*')
+			stars++;
 
-		return result.toString();
+		if (stars < length && isSpace(line.charAt(stars)))
+			return stars;
+		else
+			return 0;
 	}
 
 	public OrgNode parseLine(final String line, int numberOfStars) {
 		OrgNode node = new OrgNode();
 		node.level = numberOfStars;
 
-		Matcher matcher = pattern.matcher(line);
-		matcher.region(numberOfStars + 1, line.length());
-		if (matcher.find()) {
-			if (matcher.group(TODO_GROUP) != null)
-				node.todo = matcher.group(TODO_GROUP);
+		final int end = line.length();
+		int position = Math.min(numberOfStars + 1, end);
+
+		if (position < end && isSpace(line.charAt(position)))
+			position++;
 
-			node.name = matcher.group(NAME_GROUP);
+		int todoEnd = todos.match(line, position, end);
+		if (todoEnd >= 0) {
+			node.todo = line.substring(position, todoEnd);
+			position = todoEnd + 1;
+		}
 
-			if (matcher.group(PRIORITY_GROUP) != null)
-				node.priority = matcher.group(PRIORITY_GROUP);
+		if (line.startsWith("[#", position)) {
+			int priorityEnd = line.indexOf(']', position + 2);
+			if (priorityEnd > position + 2 && priorityEnd + 1 < end
+					&& isSpace(line.charAt(priorityEnd + 1))) {
+				node.priority = line.substring(position + 2, priorityEnd);
+				position = priorityEnd + 2;
+			}
+		}
 
-			if (matcher.group(TAGS_GROUP) != null)
-				node.tags = matcher.group(TAGS_GROUP);
+		parseTitle(node, line, position, end);
+		return node;
+	}
 
-			if (matcher.group(AFTER_GROUP) != null)
-				node.name = matcher.group(AFTER_GROUP).trim()
-						+ ">" + node.name.trim();
+	/**
+	 * Splits the rest of the heading into title and trailing parts. The
+	 * title is the shortest prefix for which the remainder consists of
+	 * optional whitespace, tags, habit markers and before/after blocks.
+	 */
+	private void parseTitle(OrgNode node, String line, int titleStart, int end) {
+		Tail best = parseTail(line, titleStart, end);
+
+		int afterTitle = -1;
+		if (line.indexOf('<', titleStart) >= 0) {
+			// Positions where a before or after block can start
+			final boolean hasAfter = line.startsWith(AFTER_END, end - AFTER_END.length());
+			if (hasAfter) {
+				afterTitle = line.lastIndexOf(AFTER_TITLE, end
+						- AFTER_END.length() - AFTER_TITLE.length());
+				if (afterTitle < titleStart + AFTER_START.length())
+					afterTitle = -1;
+			}
+
+			if (afterTitle >= 0) {
+				for (int afterStart = line.indexOf(AFTER_START, titleStart); afterStart >= 0
+						&& afterStart + AFTER_START.length() <= afterTitle; afterStart = line
+						.indexOf(AFTER_START, afterStart + 1)) {
+					best = getBestTail(best, parseTail(line, titleStart, afterStart));
+					best = getBestTail(best, parseBeforeBlocks(line, titleStart, afterStart));
+				}
+			} else if (line.startsWith(BEFORE_END, end - BEFORE_END.length()))
+				best = getBestTail(best, parseBeforeBlocks(line, titleStart, end));
+		}
 
+		node.name = line.substring(titleStart, best.titleEnd);
+		if (best.tags != null)
+			node.tags = best.tags;
+
+		if (afterTitle >= 0 && best.blockStart < end) {
+			String after = line.substring(afterTitle + AFTER_TITLE.length(),
+					end - AFTER_END.length());
+			node.name = after.trim() + ">" + node.name.trim();
+		}
+	}
+
+	/**
+	 * Tries all before blocks that end at blockEnd.
+	 */
+	private Tail parseBeforeBlocks(String line, int titleStart, int blockEnd) {
+		Tail best = null;
+		if (line.startsWith(BEFORE_END, blockEnd - BEFORE_END.length()) == false)
+			return null;
+
+		for (int beforeStart = line.indexOf(BEFORE_START, titleStart); beforeStart >= 0
+				&& beforeStart + BEFORE_START.length() <= blockEnd - BEFORE_END.length(); beforeStart = line
+				.indexOf(BEFORE_START, beforeStart + 1))
+			best = getBestTail(best, parseTail(line, titleStart, beforeStart));
+		return best;
+	}
+
+	private static class Tail {
+		/** End of the title, start of the trailing parts. */
+		public int titleEnd;
+		/** Start of the before/after blocks. */
+		public int blockStart;
+		public String tags;
+
+		public Tail(int titleEnd, int blockStart, String tags) {
+			this.titleEnd = titleEnd;
+			this.blockStart = blockStart;
+			this.tags = tags;
+		}
+	}
+
+	/**
+	 * The shortest title wins. On ties, prefer the candidate the regular
+	 * expression would find first: with tags, with longer tags and with the
+	 * longest run of habit markers.
+	 */
+	private static Tail getBestTail(Tail current, Tail candidate) {
+		if (current == null)
+			return candidate;
+		if (candidate == null)
+			return current;
+
+		if (candidate.titleEnd != current.titleEnd)
+			return candidate.titleEnd < current.titleEnd ? candidate : current;
+		if ((candidate.tags == null) != (current.tags == null))
+			return candidate.tags != null ? candidate : current;
+		if (candidate.tags != null
+				&& candidate.tags.length() != current.tags.length())
+			return candidate.tags.length() > current.tags.length() ? candidate : current;
+		return candidate.blockStart > current.blockStart ? candidate : current;
+	}
+
+	/**
+	 * Finds the start of the whitespace, tags and habit markers that end at
+	 * blockStart.
+	 */
+	private static Tail parseTail(String line, int titleStart, int blockStart) {
+		// Trailing habit markers and whitespace
+		int markersStart = blockStart;
+		while (markersStart > titleStart
+				&& isMarkerOrSpace(line.charAt(markersStart - 1)))
+			markersStart--;
+
+		int tagsEnd;
+		int titleEnd;
+		if (blockStart > titleStart && isMarker(line.charAt(blockStart - 1))) {
+			tagsEnd = markersStart;
+			titleEnd = markersStart;
 		} else {
-			Log.w("MobileOrg", "Title not matched: " + line);
-			node.name = line;
+			tagsEnd = blockStart;
+			titleEnd = skipSpaceBackwards(line, titleStart, blockStart);
 		}
 
-		return node;
+		// Tags are of the form :tag1:tag2:, the opening colon is the first
+		// colon of the last word
+		if (tagsEnd > titleStart && line.charAt(tagsEnd - 1) == ':') {
+			int wordStart = tagsEnd - 1;
+			while (wordStart > titleStart && isSpace(line.charAt(wordStart - 1)) == false)
+				wordStart--;
+
+			int tagsStart = line.indexOf(':', wordStart);
+			if (tagsStart < tagsEnd - 2) {
+				return new Tail(skipSpaceBackwards(line, titleStart, tagsStart),
+						blockStart, line.substring(tagsStart + 1, tagsEnd - 1));
+			}
+		}
+
+		return new Tail(titleEnd, blockStart, null);
+	}
+
+	private static int skipSpaceBackwards(String line, int start, int position) {
+		while (position > start && isSpace(line.charAt(position - 1)))
+			position--;
+		return position;
+	}
+
+	private static boolean isMarker(char c) {
+		return c == '!' || c == '*';
+	}
+
+	private static boolean isMarkerOrSpace(char c) {
+		return isMarker(c) || isSpace(c);
+	}
+
+	/** Same characters as \s in regular expressions. */
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B'
+				|| c == '\f' || c == '\r';
+	}
+
+	/**
+	 * Trie of todo keywords.
+	 */
+	private static class TodoTrie {
+		private char[] keys = new char[0];
+		private TodoTrie[] children = new TodoTrie[0];
+		private boolean isKeyword = false;
+
+		public void add(String keyword) {
+			TodoTrie node = this;
+			for (int i = 0; i < keyword.length(); i++)
+				node = node.getOrCreateChild(keyword.charAt(i));
+			node.isKeyword = true;
+		}
+
+		private TodoTrie getChild(char key) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == key)
+					return children[i];
+			}
+			return null;
+		}
+
+		private TodoTrie getOrCreateChild(char key) {
+			TodoTrie child = getChild(key);
+			if (child == null) {
+				child = new TodoTrie();
+
+				char[] newKeys = new char[keys.length + 1];
+				System.arraycopy(keys, 0, newKeys, 0, keys.length);
+				newKeys[keys.length] = key;
+				TodoTrie[] newChildren = new TodoTrie[children.length + 1];
+				System.arraycopy(children, 0, newChildren, 0, children.length);
+				newChildren[children.length] = child;
+
+				this.keys = newKeys;
+				this.children = newChildren;
+			}
+			return child;
+		}
+
+		/**
+		 * @return End of the keyword that starts at position and is followed
+		 *         by whitespace, or -1 if there is none.
+		 */
+		public int match(String line, int position, int end) {
+			TodoTrie node = this;
+			for (int i = position; node != null; i++) {
+				if (node.isKeyword && i < end && isSpace(line.charAt(i)))
+					return i;
+				if (i >= end)
+					break;
+				node = node.getChild(line.charAt(i));
+			}
+			return -1;
+		}
 	}
 }
@@ -7,8 +7,11 @@ import java.util.HashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import android.content.ContentValues;
 import android.text.TextUtils;
 
+import com.matburt.mobileorg.OrgData.OrgContract.OrgData;
+
 public class OrgNodePayload {
 	private StringBuilder payload = new StringBuilder();
 	
@@ -250,6 +253,28 @@ public class OrgNodePayload {
 	}
 	
 	
+	/**
+	 * Puts the begin and end times of the scheduled, deadline and timestamp
+	 * dates into the {@link OrgData#DATE_COLUMNS} of the values.
+	 */
+	public void putDateValues(ContentValues values) {
+		putDateValues(values, getScheduled(), OrgData.SCHEDULED, OrgData.SCHEDULED_END);
+		putDateValues(values, getDeadline(), OrgData.DEADLINE, OrgData.DEADLINE_END);
+		putDateValues(values, getTimestamp(), OrgData.TIMESTAMP, OrgData.TIMESTAMP_END);
+	}
+	
+	private static void putDateValues(ContentValues values, String date,
+			String beginColumn, String endColumn) {
+		try {
+			OrgNodeDate nodeDate = new OrgNodeDate(date);
+			values.put(beginColumn, nodeDate.beginTime);
+			values.put(endColumn, nodeDate.endTime);
+		} catch (IllegalArgumentException e) {
+			values.putNull(beginColumn);
+			values.putNull(endColumn);
+		}
+	}
+	
 	public ArrayList<OrgNodeDate> getDates(String title) {
 		ArrayList<OrgNodeDate> result = new ArrayList<OrgNodeDate>();
 
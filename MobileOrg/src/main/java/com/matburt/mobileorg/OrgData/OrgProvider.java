@@ -1,10 +1,18 @@
 package com.matburt.mobileorg.OrgData;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
@@ -65,15 +73,24 @@ public class OrgProvider extends ContentProvider {
 	
 	@Override
 	public boolean onCreate() {
-		this.dbHelper = new OrgDatabase(getContext());
+		this.dbHelper = MobileOrgApplication.acquireDatabase(getContext());
+		OrgNodeCache.clear();
 		return false;
 	}
 	
+	@Override
+	public void shutdown() {
+		MobileOrgApplication.releaseDatabase(dbHelper);
+	}
+	
 
 	@Override
 	public Cursor query(Uri uri, String[] projection, String selection,
 			String[] selectionArgs, String sortOrder) {
        final SQLiteDatabase db = dbHelper.getReadableDatabase();
+       
+       if (uriMatcher.match(uri) == SEARCH)
+    	   return search(db, Search.getSearchTerm(uri), projection);
 
        final SelectionBuilder builder = buildSelectionFromUri(uri);
        return builder.where(selection, selectionArgs).query(db, projection, sortOrder);
@@ -81,18 +98,89 @@ public class OrgProvider extends ContentProvider {
 
 	@Override
 	public Uri insert(Uri uri, ContentValues contentValues) {		
+		final SQLiteDatabase db = dbHelper.getWritableDatabase();
+		Uri noteUri;
+		db.beginTransaction();
+		try {
+			noteUri = insertRow(uri, contentValues);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		notifyChange(noteUri);
+		return noteUri;
+	}
+	
+	/**
+	 * Inserts all rows in one transaction and sends a single change
+	 * notification.
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		final SQLiteDatabase db = dbHelper.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			for (ContentValues contentValues : values)
+				insertRow(uri, contentValues);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		notifyChange(uri);
+		return values.length;
+	}
+	
+	/**
+	 * Applies the operations in one transaction. Change notifications are
+	 * sent together after the transaction ended.
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(
+			ArrayList<ContentProviderOperation> operations)
+			throws OperationApplicationException {
+		final SQLiteDatabase db = dbHelper.getWritableDatabase();
+		
+		OrgChangeNotifier.beginBatch();
+		try {
+			db.beginTransaction();
+			try {
+				ContentProviderResult[] results = super.applyBatch(operations);
+				db.setTransactionSuccessful();
+				return results;
+			} finally {
+				db.endTransaction();
+			}
+		} finally {
+			OrgChangeNotifier.endBatch();
+		}
+	}
+	
+	private Uri insertRow(Uri uri, ContentValues contentValues) {
 		final String tableName = getTableNameFromUri(uri);
 		
 		if(contentValues == null)
 			contentValues = new ContentValues();
 		
+		if (isOrgDataUri(uri) && contentValues.containsKey(OrgData.PATH) == false) {
+			Long parentId = contentValues.getAsLong(OrgData.PARENT_ID);
+			contentValues.put(OrgData.PATH,
+					dbHelper.getChildPath(parentId != null ? parentId : -1));
+		}
+		
 		SQLiteDatabase db = dbHelper.getWritableDatabase();
 		long rowId = db.insert(tableName, null, contentValues);
 
 		if (rowId > 0) {
-			Uri noteUri = ContentUris.withAppendedId(uri, rowId);
-			getContext().getContentResolver().notifyChange(noteUri, null);
-			return noteUri;
+			if (isOrgDataUri(uri)) {
+				HashSet<Long> parentIds = new HashSet<Long>();
+				addParentId(parentIds, contentValues);
+				updateCounts(parentIds);
+				dbHelper.fastSetNodeTags(rowId,
+						contentValues.getAsString(OrgData.TAGS),
+						contentValues.getAsString(OrgData.TAGS_INHERITED));
+			}
+			invalidateCache(uri, rowId, contentValues);
+			return ContentUris.withAppendedId(uri, rowId);
 		} else
 			throw new SQLException("Failed to insert row into " + uri);
 	}
@@ -101,9 +189,23 @@ public class OrgProvider extends ContentProvider {
 	@Override
 	public int delete(Uri uri, String selection, String[] selectionArgs) {		
 		final SQLiteDatabase db = dbHelper.getWritableDatabase();
-		final SelectionBuilder builder = buildSelectionFromUri(uri);
-		int count = builder.where(selection, selectionArgs).delete(db);
-		getContext().getContentResolver().notifyChange(uri, null);
+		final SelectionBuilder builder = buildSelectionFromUri(uri).where(selection, selectionArgs);
+		
+		// Deleting nodes changes the counts of their ancestors
+		final boolean updateCounts = isOrgDataUri(uri);
+		int count;
+		db.beginTransaction();
+		try {
+			HashSet<Long> parentIds = updateCounts ? getOutsideParentIds(db, builder) : null;
+			count = builder.delete(db);
+			if (updateCounts)
+				updateCounts(parentIds);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		invalidateCache(uri, -1, null);
+		notifyChange(uri);
 		return count;
 	}
 	
@@ -111,9 +213,36 @@ public class OrgProvider extends ContentProvider {
 	public int update(Uri uri, ContentValues values, String selection,
 			String[] selectionArgs) {
 		final SQLiteDatabase db = dbHelper.getWritableDatabase();
-		final SelectionBuilder builder = buildSelectionFromUri(uri);
-		int count = builder.where(selection, selectionArgs).update(db, values);
-		getContext().getContentResolver().notifyChange(uri, null);
+		final SelectionBuilder builder = buildSelectionFromUri(uri).where(selection, selectionArgs);
+		
+		// Moving nodes changes the counts of their old and new ancestors
+		final boolean updateCounts = isOrgDataUri(uri)
+				&& values.containsKey(OrgData.PARENT_ID);
+		final boolean updateTags = isOrgDataUri(uri)
+				&& (values.containsKey(OrgData.TAGS) || values.containsKey(OrgData.TAGS_INHERITED));
+		int count;
+		db.beginTransaction();
+		try {
+			HashSet<Long> parentIds = updateCounts ? getOutsideParentIds(db, builder) : null;
+			HashMap<Long, String> paths = updateCounts || updateTags ? getPaths(db, builder) : null;
+			count = builder.update(db, values);
+			if (updateTags)
+				dbHelper.updateNodeTags(paths.keySet());
+			if (updateCounts) {
+				Long parentId = values.getAsLong(OrgData.PARENT_ID);
+				// Most updates keep the parent, which leaves the tree as it is
+				if (parentIds.size() != 1 || parentIds.contains(parentId) == false) {
+					updatePaths(paths, parentId);
+					addParentId(parentIds, values);
+					updateCounts(parentIds);
+				}
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		invalidateCache(uri, -1, values);
+		notifyChange(uri);
 		return count;
 	}
 
@@ -123,6 +252,125 @@ public class OrgProvider extends ContentProvider {
 		return null;
 	}
 	
+	/**
+	 * Changes are coalesced and debounced by {@link OrgChangeNotifier}.
+	 */
+	private void notifyChange(Uri uri) {
+		OrgChangeNotifier.notifyChange(uri, getContext().getContentResolver());
+	}
+	
+	private boolean isOrgDataUri(Uri uri) {
+		switch (uriMatcher.match(uri)) {
+		case ORGDATA:
+		case ORGDATA_ID:
+		case ORGDATA_PARENT:
+		case ORGDATA_CHILDREN:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * @return Parents of the selected nodes that are not selected themselves.
+	 *         Their counts change when the selected nodes are deleted or moved.
+	 */
+	private HashSet<Long> getOutsideParentIds(SQLiteDatabase db, SelectionBuilder builder) {
+		HashSet<Long> ids = new HashSet<Long>();
+		HashSet<Long> parentIds = new HashSet<Long>();
+		
+		Cursor cursor = builder.query(db, new String[] { OrgData.ID,
+				OrgData.PARENT_ID }, null);
+		try {
+			while (cursor.moveToNext()) {
+				ids.add(cursor.getLong(0));
+				parentIds.add(cursor.getLong(1));
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		parentIds.removeAll(ids);
+		return parentIds;
+	}
+	
+	private HashMap<Long, String> getPaths(SQLiteDatabase db, SelectionBuilder builder) {
+		HashMap<Long, String> paths = new HashMap<Long, String>();
+		Cursor cursor = builder.query(db, new String[] { OrgData.ID,
+				OrgData.PATH }, null);
+		try {
+			while (cursor.moveToNext())
+				paths.put(cursor.getLong(0), cursor.getString(1));
+		} finally {
+			cursor.close();
+		}
+		return paths;
+	}
+	
+	/**
+	 * Moves the paths of the nodes and their descendants below the new
+	 * parent.
+	 */
+	private void updatePaths(HashMap<Long, String> paths, Long parentId) {
+		String newPath = dbHelper.getChildPath(parentId != null ? parentId : -1);
+		for (Long nodeId : paths.keySet()) {
+			if (newPath.equals(paths.get(nodeId)) == false)
+				dbHelper.updatePath(nodeId, paths.get(nodeId), newPath);
+		}
+		// Cached descendants have outdated paths
+		OrgNodeCache.invalidateNodes();
+	}
+	
+	private void addParentId(HashSet<Long> parentIds, ContentValues values) {
+		Long parentId = values.getAsLong(OrgData.PARENT_ID);
+		if (parentId != null)
+			parentIds.add(parentId);
+	}
+	
+	/**
+	 * Updates the child and descendant counts of the nodes and their
+	 * ancestors.
+	 */
+	private void updateCounts(HashSet<Long> nodeIds) {
+		for (Long nodeId : nodeIds)
+			OrgNodeCache.invalidateNodes(dbHelper.updateAncestorCounts(nodeId));
+	}
+	
+	/**
+	 * Drops the entries of {@link OrgNodeCache} that a change to the given
+	 * uri affects. Single nodes are invalidated precisely, other changes to
+	 * the outline clear all cached nodes.
+	 */
+	private void invalidateCache(Uri uri, long insertedId, ContentValues values) {
+		switch (uriMatcher.match(uri)) {
+		case ORGDATA:
+			if (insertedId >= 0)
+				OrgNodeCache.invalidateNode(insertedId, values);
+			else
+				OrgNodeCache.invalidateNodes();
+			break;
+		case ORGDATA_ID:
+			try {
+				OrgNodeCache.invalidateNode(Long.parseLong(OrgData.getId(uri)), values);
+			} catch (NumberFormatException e) {
+				OrgNodeCache.invalidateNodes();
+			}
+			break;
+		case ORGDATA_PARENT:
+		case ORGDATA_CHILDREN:
+			OrgNodeCache.invalidateNodes();
+			break;
+		case FILES:
+		case FILES_ID:
+		case FILES_FILENAME:
+			OrgNodeCache.invalidateFiles();
+			break;
+		case TODOS:
+			OrgNodeCache.invalidateTodos();
+			break;
+		}
+	}
+	
 	private SelectionBuilder buildSelectionFromUri(Uri uri) {
 		final SelectionBuilder builder = new SelectionBuilder();
 		switch (uriMatcher.match(uri)) {
@@ -150,14 +398,56 @@ public class OrgProvider extends ContentProvider {
 			return builder.table(Tables.TODOS);
 		case PRIORITIES:
 			return builder.table(Tables.PRIORITIES);
-		case SEARCH:
-			final String search = Search.getSearchTerm(uri);
-			return builder.table(Tables.ORGDATA).where("name LIKE %?%", search);
 		default:
 			throw new IllegalArgumentException("Unknown URI " + uri);
 		}
 	}
 	
+	/**
+	 * Full text search over the name and payload of nodes. Every word is
+	 * matched as a prefix. Nodes with all words in their heading are ranked
+	 * first, followed by the nodes with the most matches. offsets() lists
+	 * four numbers for every match, so the matches are counted by the spaces
+	 * that separate them.
+	 */
+	private Cursor search(SQLiteDatabase db, String term, String[] projection) {
+		StringBuilder matchQuery = new StringBuilder();
+		StringBuilder nameMatchQuery = new StringBuilder();
+		for (String word : term.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+			if (word.length() == 0)
+				continue;
+			matchQuery.append(word).append("* ");
+			nameMatchQuery.append(OrgData.NAME).append(":").append(word).append("* ");
+		}
+		
+		if (projection == null)
+			projection = OrgData.DEFAULT_COLUMNS;
+		// Nothing to match
+		if (matchQuery.length() == 0)
+			return new MatrixCursor(projection);
+		
+		StringBuilder columns = new StringBuilder();
+		for (String column : projection) {
+			if (columns.length() > 0)
+				columns.append(", ");
+			columns.append(Tables.ORGDATA + "." + column);
+			columns.append(" AS ").append(column);
+		}
+		
+		final String offsets = "offsets(" + Tables.ORGDATA_FTS + ")";
+		final String sql = "SELECT " + columns + " FROM " + Tables.ORGDATA_FTS
+				+ " JOIN " + Tables.ORGDATA + " ON " + Tables.ORGDATA + "." + OrgData.ID
+				+ "=" + Tables.ORGDATA_FTS + ".docid"
+				+ " WHERE " + Tables.ORGDATA_FTS + " MATCH ?"
+				+ " ORDER BY " + Tables.ORGDATA_FTS + ".docid IN (SELECT docid FROM "
+				+ Tables.ORGDATA_FTS + " WHERE " + Tables.ORGDATA_FTS + " MATCH ?) DESC, "
+				+ "length(" + offsets + ") - length(replace(" + offsets
+				+ ", ' ', '')) DESC, "
+				+ Tables.ORGDATA + "." + OrgData.ID + " ASC";
+		return db.rawQuery(sql, new String[] { matchQuery.toString().trim(),
+				nameMatchQuery.toString().trim() });
+	}
+	
 	private String getTableNameFromUri(Uri uri) {
 		String tableName = null;
 
@@ -1,20 +1,24 @@
 package com.matburt.mobileorg.OrgData;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
 import android.text.TextUtils;
 
 import com.matburt.mobileorg.OrgData.OrgContract.Edits;
 import com.matburt.mobileorg.OrgData.OrgContract.Files;
 import com.matburt.mobileorg.OrgData.OrgContract.OrgData;
 import com.matburt.mobileorg.OrgData.OrgContract.Priorities;
+import com.matburt.mobileorg.OrgData.OrgContract.Search;
 import com.matburt.mobileorg.OrgData.OrgContract.Tags;
 import com.matburt.mobileorg.OrgData.OrgContract.Todos;
 import com.matburt.mobileorg.util.FileUtils;
@@ -44,6 +48,27 @@ public class OrgProviderUtils {
 		return checksums;
 	}
 	
+	public static HashMap<String, String> getFileContentDigests(ContentResolver resolver) {
+		HashMap<String, String> digests = new HashMap<String, String>();
+
+		Cursor cursor = resolver.query(Files.CONTENT_URI, Files.DEFAULT_COLUMNS,
+				null, null, null);
+		cursor.moveToFirst();
+
+		while (cursor.isAfterLast() == false) {
+			OrgFile orgFile = new OrgFile();
+			
+			try {
+				orgFile.set(cursor);
+				digests.put(orgFile.filename, orgFile.contentDigest);
+			} catch (OrgFileNotFoundException e) {}
+			cursor.moveToNext();
+		}
+
+		cursor.close();
+		return digests;
+	}
+	
 	public static ArrayList<String> getFilenames(ContentResolver resolver) {
 		ArrayList<String> result = new ArrayList<String>();
 
@@ -89,7 +114,14 @@ public class OrgProviderUtils {
 	
 	public static void setTodos(ArrayList<HashMap<String, Boolean>> todos,
 			ContentResolver resolver) {
-		resolver.delete(Todos.CONTENT_URI, null, null);
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		addSetTodosOperations(todos, operations);
+		applyBatch(operations, resolver);
+	}
+	
+	private static void addSetTodosOperations(ArrayList<HashMap<String, Boolean>> todos,
+			ArrayList<ContentProviderOperation> operations) {
+		operations.add(ContentProviderOperation.newDelete(Todos.CONTENT_URI).build());
 
 		int grouping = 0;
 		for (HashMap<String, Boolean> entry : todos) {
@@ -100,11 +132,58 @@ public class OrgProviderUtils {
 
 				if (entry.get(name))
 					values.put(Todos.ISDONE, 1);
-				resolver.insert(Todos.CONTENT_URI, values);
+				operations.add(ContentProviderOperation
+						.newInsert(Todos.CONTENT_URI).withValues(values).build());
 			}
 			grouping++;
 		}
 	}
+	
+	/**
+	 * Replaces the todos, priorities and tags of the index file in a single
+	 * transaction.
+	 */
+	public static void setIndex(ArrayList<HashMap<String, Boolean>> todos,
+			ArrayList<String> priorities, ArrayList<String> tags,
+			ContentResolver resolver) {
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		addSetTodosOperations(todos, operations);
+		addSetNamesOperations(Priorities.CONTENT_URI, Priorities.NAME, priorities, operations);
+		addSetNamesOperations(Tags.CONTENT_URI, Tags.NAME, tags, operations);
+		applyBatch(operations, resolver);
+	}
+	
+	private static void addSetNamesOperations(Uri uri, String column,
+			ArrayList<String> names, ArrayList<ContentProviderOperation> operations) {
+		operations.add(ContentProviderOperation.newDelete(uri).build());
+		
+		for (String name : names) {
+			operations.add(ContentProviderOperation.newInsert(uri)
+					.withValue(column, name).build());
+		}
+	}
+	
+	static void applyBatch(ArrayList<ContentProviderOperation> operations,
+			ContentResolver resolver) {
+		try {
+			resolver.applyBatch(OrgContract.CONTENT_AUTHORITY, operations);
+		} catch (RemoteException e) {
+			throw new IllegalStateException("Failed to apply batch", e);
+		} catch (OperationApplicationException e) {
+			throw new IllegalStateException("Failed to apply batch", e);
+		}
+	}
+	
+	/**
+	 * Inserts the nodes in a single transaction.
+	 */
+	public static void addNodes(ArrayList<OrgNode> nodes, ContentResolver resolver) {
+		ContentValues[] values = new ContentValues[nodes.size()];
+		for (int i = 0; i < values.length; i++)
+			values[i] = nodes.get(i).getContentValues();
+		resolver.bulkInsert(OrgData.CONTENT_URI, values);
+	}
+	
 	public static ArrayList<String> getTodos(ContentResolver resolver) {
 		Cursor cursor = resolver.query(Todos.CONTENT_URI, new String[] { Todos.NAME }, null, null, Todos.ID);
 		ArrayList<String> todos = cursorToArrayList(cursor);
@@ -114,13 +193,9 @@ public class OrgProviderUtils {
 	}
 	
 	public static void setPriorities(ArrayList<String> priorities, ContentResolver resolver) {
-		resolver.delete(Priorities.CONTENT_URI, null, null);
-
-		for (String priority : priorities) {
-			ContentValues values = new ContentValues();
-			values.put(Priorities.NAME, priority);
-			resolver.insert(Priorities.CONTENT_URI, values);
-		}
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		addSetNamesOperations(Priorities.CONTENT_URI, Priorities.NAME, priorities, operations);
+		applyBatch(operations, resolver);
 	}
 	public static ArrayList<String> getPriorities(ContentResolver resolver) {
 		Cursor cursor = resolver.query(Priorities.CONTENT_URI, new String[] { Priorities.NAME },
@@ -132,14 +207,10 @@ public class OrgProviderUtils {
 	}
 	
 
-	public static void setTags(ArrayList<String> priorities, ContentResolver resolver) {
-		resolver.delete(Tags.CONTENT_URI, null, null);
-
-		for (String priority : priorities) {
-			ContentValues values = new ContentValues();
-			values.put(Tags.NAME, priority);
-			resolver.insert(Tags.CONTENT_URI, values);
-		}
+	public static void setTags(ArrayList<String> tags, ContentResolver resolver) {
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		addSetNamesOperations(Tags.CONTENT_URI, Tags.NAME, tags, operations);
+		applyBatch(operations, resolver);
 	}
 	public static ArrayList<String> getTags(ContentResolver resolver) {
 		Cursor cursor = resolver.query(Tags.CONTENT_URI, new String[] { Tags.NAME },
@@ -161,21 +232,45 @@ public class OrgProviderUtils {
 		return list;
 	}
 	
+	/**
+	 * @return The node and its ancestors, starting with the file node.
+	 */
 	public static ArrayList<OrgNode> getOrgNodePathFromTopLevel(long node_id, ContentResolver resolver) {
 		ArrayList<OrgNode> nodes = new ArrayList<OrgNode>();
+		if (node_id < 0)
+			return nodes;
 		
-		long currentId = node_id;
-		while(currentId >= 0) {
-			try {
-				OrgNode node = new OrgNode(currentId, resolver);
-				nodes.add(node);
-				currentId = node.parentId;
-			} catch (OrgNodeNotFoundException e) {
-				throw new IllegalStateException("Couldn't build entire path to root from a given node");
+		OrgNode node;
+		try {
+			node = new OrgNode(node_id, resolver);
+		} catch (OrgNodeNotFoundException e) {
+			throw new IllegalStateException("Couldn't build entire path to root from a given node");
+		}
+		
+		ArrayList<Long> ancestorIds = OrgData.getPathIds(node.path);
+		if (ancestorIds.isEmpty() == false) {
+			StringBuilder selection = new StringBuilder(OrgData.ID + " IN (");
+			String[] selectionArgs = new String[ancestorIds.size()];
+			for (int i = 0; i < selectionArgs.length; i++) {
+				selection.append(i == 0 ? "?" : ",?");
+				selectionArgs[i] = ancestorIds.get(i).toString();
+			}
+			selection.append(")");
+			
+			// Paths of ancestors are prefixes of each other
+			Cursor cursor = resolver.query(OrgData.CONTENT_URI,
+					OrgData.HEADING_COLUMNS, selection.toString(), selectionArgs,
+					"length(" + OrgData.PATH + ") ASC");
+			if (cursor != null) {
+				nodes.addAll(orgDataCursorToArrayList(cursor, resolver));
+				cursor.close();
 			}
+			
+			if (nodes.size() != ancestorIds.size())
+				throw new IllegalStateException("Couldn't build entire path to root from a given node");
 		}
 		
-		Collections.reverse(nodes);
+		nodes.add(node);
 		return nodes;
 	}
 	
@@ -213,14 +308,59 @@ public class OrgProviderUtils {
 			if(level != 0) // Don't add top level file node heading
 				result.append(node.toString() + "\n");
 			
-			for (OrgNode child : node.getChildren(resolver))
-				result.append(nodesToString(child.id, level + 1, resolver));
+			for (OrgNode descendant : getOrgNodeDescendants(node, resolver))
+				result.append(descendant.toString() + "\n");
 			
 		} catch (OrgNodeNotFoundException e) {}
 
 		return result;
 	}
 	
+	/**
+	 * Fetches the subtree of the node with a single query.
+	 * 
+	 * @return The descendants of the node in document order.
+	 */
+	public static ArrayList<OrgNode> getOrgNodeDescendants(OrgNode node, ContentResolver resolver) {
+		ArrayList<OrgNode> result = new ArrayList<OrgNode>();
+		if (node.childCount == 0)
+			return result;
+		
+		Cursor cursor = resolver.query(OrgData.CONTENT_URI,
+				OrgData.DEFAULT_COLUMNS, OrgData.SUBTREE_SELECTION,
+				OrgData.buildSubtreeSelectionArgs(OrgData.buildChildPath(node.path, node.id)),
+				OrgData.DEFAULT_SORT);
+		if (cursor == null)
+			return result;
+		ArrayList<OrgNode> descendants = orgDataCursorToArrayList(cursor);
+		cursor.close();
+		
+		HashMap<Long, ArrayList<OrgNode>> children = new HashMap<Long, ArrayList<OrgNode>>();
+		for (OrgNode descendant : descendants) {
+			ArrayList<OrgNode> siblings = children.get(descendant.parentId);
+			if (siblings == null) {
+				siblings = new ArrayList<OrgNode>();
+				children.put(descendant.parentId, siblings);
+			}
+			siblings.add(descendant);
+		}
+		
+		addDescendants(node.id, children, result);
+		return result;
+	}
+	
+	private static void addDescendants(long nodeId,
+			HashMap<Long, ArrayList<OrgNode>> children, ArrayList<OrgNode> result) {
+		ArrayList<OrgNode> nodeChildren = children.get(nodeId);
+		if (nodeChildren == null)
+			return;
+		
+		for (OrgNode child : nodeChildren) {
+			result.add(child);
+			addDescendants(child.id, children, result);
+		}
+	}
+	
 	public static void clearDB(ContentResolver resolver) {
 		resolver.delete(OrgData.CONTENT_URI, null, null);
 		resolver.delete(Files.CONTENT_URI, null, null);
@@ -307,27 +447,41 @@ public class OrgProviderUtils {
 		if(TextUtils.isEmpty(todo))
 			return true;
 
-		Cursor cursor = resolver.query(Todos.CONTENT_URI, Todos.DEFAULT_COLUMNS, Todos.NAME + " = ?",
-				new String[] { todo }, null);		
+		Boolean isDone = getTodoStates(resolver).get(todo);
+		return isDone != null && isDone == false;
+	}
+	
+	/**
+	 * @return Map of todo keywords to whether they are done.
+	 */
+	private static HashMap<String, Boolean> getTodoStates(ContentResolver resolver) {
+		HashMap<String, Boolean> todos = OrgNodeCache.getTodos();
+		if (todos != null)
+			return todos;
 		
-		if(cursor.getCount() > 0) {
-			cursor.moveToFirst();
-			int isdone = cursor.getInt(cursor.getColumnIndex(Todos.ISDONE));
-			cursor.close();
-			
-			if(isdone == 0)
-				return true;
-			else
-				return false;
+		long generation = OrgNodeCache.getGeneration();
+		todos = new HashMap<String, Boolean>();
+		Cursor cursor = resolver.query(Todos.CONTENT_URI, Todos.DEFAULT_COLUMNS,
+				null, null, null);
+		if (cursor == null)
+			return todos;
+		
+		while (cursor.moveToNext()) {
+			todos.put(cursor.getString(cursor.getColumnIndex(Todos.NAME)),
+					cursor.getInt(cursor.getColumnIndex(Todos.ISDONE)) != 0);
 		}
+		cursor.close();
 		
-		return false;
+		OrgNodeCache.putTodos(todos, generation);
+		return todos;
 	}
 	
 	public static Cursor getFileSchedule(String filename, boolean showHabits, ContentResolver resolver) throws OrgFileNotFoundException {
 		OrgFile file = new OrgFile(filename, resolver);
 		
-		String whereQuery = OrgData.FILE_ID + "=? AND (" + OrgData.PAYLOAD + " LIKE '%<%>%'";
+		String whereQuery = OrgData.FILE_ID + "=? AND (("
+				+ OrgData.SCHEDULED + " IS NOT NULL OR " + OrgData.DEADLINE
+				+ " IS NOT NULL OR " + OrgData.TIMESTAMP + " IS NOT NULL)";
 
 		if(showHabits == false)
 			whereQuery += " AND NOT " + OrgData.PAYLOAD + " LIKE '%:STYLE: habit%'";
@@ -340,10 +494,13 @@ public class OrgProviderUtils {
 		return cursor;
 	}
 	
+	/**
+	 * Searches the name and payload of all nodes. Every word of the query is
+	 * matched as a prefix, results are ranked with heading matches first.
+	 */
 	public static Cursor search(String query, ContentResolver resolver) {
-		Cursor cursor = resolver.query(OrgData.CONTENT_URI, OrgData.DEFAULT_COLUMNS,
-				OrgData.NAME + " LIKE ?", new String[] { query },
-				OrgData.DEFAULT_SORT);
+		Cursor cursor = resolver.query(Search.buildSearchUri(query),
+				OrgData.HEADING_COLUMNS, null, null, null);
 		
 		return cursor;
 	}
@@ -374,24 +531,74 @@ public class OrgProviderUtils {
 	}
 	
 	public static ArrayList<OrgNode> getOrgNodeChildren(long nodeId, ContentResolver resolver) {
+		ArrayList<OrgNode> cachedChildren = OrgNodeCache.getChildren(nodeId);
+		if (cachedChildren != null)
+			return cachedChildren;
 		
-		String sort = nodeId == -1 ? OrgData.NAME_SORT : null;
+		long generation = OrgNodeCache.getGeneration();
+		String sort = nodeId == -1 ? OrgData.NAME_SORT : OrgData.DEFAULT_SORT;
 		Cursor childCursor = resolver.query(OrgData.buildChildrenUri(nodeId),
-				OrgData.DEFAULT_COLUMNS, null, null, sort);
+				OrgData.HEADING_COLUMNS, null, null, sort);
 		
-		ArrayList<OrgNode> result = orgDataCursorToArrayList(childCursor);
+		ArrayList<OrgNode> result = orgDataCursorToArrayList(childCursor, resolver);
 		childCursor.close();
+		OrgNodeCache.putChildren(nodeId, result, generation);
+		return result;
+	}
+	
+	/**
+	 * Reads the headings of the given nodes, in the given order. Nodes that
+	 * don't exist are skipped.
+	 */
+	public static ArrayList<OrgNode> getOrgNodeHeadings(long[] nodeIds, ContentResolver resolver) {
+		HashMap<Long, OrgNode> nodes = new HashMap<Long, OrgNode>();
+		
+		// Stay below the limit of arguments per statement
+		final int batchSize = 500;
+		for (int start = 0; start < nodeIds.length; start += batchSize) {
+			int end = Math.min(start + batchSize, nodeIds.length);
+			StringBuilder selection = new StringBuilder(OrgData.ID + " IN (");
+			String[] selectionArgs = new String[end - start];
+			for (int i = start; i < end; i++) {
+				selection.append(i == start ? "?" : ",?");
+				selectionArgs[i - start] = Long.toString(nodeIds[i]);
+			}
+			selection.append(")");
+			
+			Cursor cursor = resolver.query(OrgData.CONTENT_URI,
+					OrgData.HEADING_COLUMNS, selection.toString(), selectionArgs, null);
+			if (cursor == null)
+				continue;
+			for (OrgNode node : orgDataCursorToArrayList(cursor, resolver))
+				nodes.put(node.id, node);
+			cursor.close();
+		}
+		
+		ArrayList<OrgNode> result = new ArrayList<OrgNode>();
+		for (long nodeId : nodeIds) {
+			OrgNode node = nodes.get(nodeId);
+			if (node != null)
+				result.add(node);
+		}
 		return result;
 	}
 	
 	public static ArrayList<OrgNode> orgDataCursorToArrayList(Cursor cursor) {
+		return orgDataCursorToArrayList(cursor, null);
+	}
+	
+	/**
+	 * @param resolver Used to load payloads if the cursor doesn't contain
+	 *            them, may be null.
+	 */
+	public static ArrayList<OrgNode> orgDataCursorToArrayList(Cursor cursor, ContentResolver resolver) {
 		ArrayList<OrgNode> result = new ArrayList<OrgNode>();
 		
 		cursor.moveToFirst();
 		
 		while(cursor.isAfterLast() == false) {
 			try {
-				result.add(new OrgNode(cursor));
+				result.add(new OrgNode(cursor, resolver));
 			} catch (OrgNodeNotFoundException e) {}
 			cursor.moveToNext();
 		}
@@ -0,0 +1,152 @@
+package com.matburt.mobileorg.OrgData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.matburt.mobileorg.R;
+import com.matburt.mobileorg.OrgData.OrgContract.OrgData;
+
+/**
+ * Applies changes the user makes to the outline on a background thread, so
+ * the ui doesn't wait for the database, for example while a synchronization
+ * writes. The ui shows the change right away and posts the write here.
+ *
+ * Writes are applied one at a time in the order they were posted. Writes
+ * that are posted while others are applied are collected and run in a single
+ * transaction, their change notifications are sent together.
+ *
+ * If a write fails the user is told. The uris the rolled back writes changed
+ * are still reported, along with the whole outline, so the ui reloads and
+ * stops showing the change.
+ */
+public class OrgWriteQueue {
+
+	public interface Write {
+		/**
+		 * Runs on the background thread. It runs again if the transaction
+		 * is rolled back, so it must not change the objects it works on.
+		 */
+		public void apply(ContentResolver resolver);
+	}
+
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+	private static final ArrayList<Write> pendingWrites = new ArrayList<Write>();
+	private static boolean applyScheduled = false;
+
+	public static void post(Context context, Write write) {
+		final Context applicationContext = context.getApplicationContext();
+		synchronized (pendingWrites) {
+			pendingWrites.add(write);
+			if (applyScheduled)
+				return;
+			applyScheduled = true;
+		}
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				applyPendingWrites(applicationContext);
+			}
+		});
+	}
+
+	/**
+	 * Blocks until all writes posted so far are applied. Must not be called
+	 * from a write.
+	 */
+	public static void waitForWrites() {
+		try {
+			executor.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Failed to wait for writes", e);
+		}
+	}
+
+	private static void applyPendingWrites(Context context) {
+		ArrayList<Write> writes;
+		synchronized (pendingWrites) {
+			writes = new ArrayList<Write>(pendingWrites);
+			pendingWrites.clear();
+			applyScheduled = false;
+		}
+
+		ContentResolver resolver = context.getContentResolver();
+		OrgDatabase db = MobileOrgApplication.acquireDatabase(context);
+		boolean failed = false;
+		OrgChangeNotifier.beginBatch();
+		try {
+			// A failed write rolls back the others, those are retried alone
+			if (applyInTransaction(db, writes, resolver) == false) {
+				failed = true;
+				OrgChangeNotifier.notifyChange(OrgData.CONTENT_URI, resolver);
+				if (writes.size() > 1) {
+					for (Write write : writes)
+						applyInTransaction(db, Collections.singletonList(write),
+								resolver);
+				}
+			}
+		} finally {
+			OrgChangeNotifier.endBatch();
+			MobileOrgApplication.releaseDatabase(db);
+		}
+
+		if (failed)
+			reportFailure(context);
+	}
+
+	private static void reportFailure(final Context context) {
+		new Handler(Looper.getMainLooper()).post(new Runnable() {
+			@Override
+			public void run() {
+				Toast.makeText(context, R.string.error_saving_change,
+						Toast.LENGTH_LONG).show();
+			}
+		});
+	}
+
+	/**
+	 * The provider shares the database of the application context, so its
+	 * own transactions are nested in this one.
+	 *
+	 * @return false if a write failed and the transaction was rolled back.
+	 */
+	private static boolean applyInTransaction(OrgDatabase db,
+			List<Write> writes, ContentResolver resolver) {
+		SQLiteDatabase database = db.getWritableDatabase();
+		boolean successful = false;
+		database.beginTransaction();
+		try {
+			for (Write write : writes)
+				write.apply(resolver);
+			database.setTransactionSuccessful();
+			successful = true;
+		} catch (RuntimeException e) {
+			Log.e("MobileOrg", "Failed to apply write", e);
+		} finally {
+			database.endTransaction();
+		}
+
+		// The cache may hold nodes that were rolled back
+		if (successful == false)
+			OrgNodeCache.clear();
+		return successful;
+	}
+}
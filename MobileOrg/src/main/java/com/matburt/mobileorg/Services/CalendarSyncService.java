@@ -237,25 +237,33 @@ public class CalendarSyncService extends Service implements
 		CalendarEntriesParser entriesParser = new CalendarEntriesParser(
 				calendarWrapper.calendar.events, query);
 				
+		OrgFile captureFile = OrgProviderUtils
+				.getOrCreateCaptureFile(getContentResolver());
+		ArrayList<CalendarEntry> entries = new ArrayList<CalendarEntry>();
+		ArrayList<OrgNode> nodes = new ArrayList<OrgNode>();
+		
 		while(query.isAfterLast() == false) {
 			CalendarEntry entry = entriesParser.getEntryFromCursor(query);
 			OrgNode node = entry.convertToOrgNode();
 			
-			OrgFile captureFile = OrgProviderUtils
-					.getOrCreateCaptureFile(getContentResolver());
 			node.fileId = captureFile.id;
 			node.parentId = captureFile.nodeId;
 			node.level = 1;
-						
-			node.write(getContentResolver());
-			
-			if (this.pullDelete)
-				calendarWrapper.deleteEntry(entry);
 			
+			entries.add(entry);
+			nodes.add(node);
 			query.moveToNext();
 		}
 		
 		query.close();
+		
+		OrgProviderUtils.addNodes(nodes, getContentResolver());
+		
+		// Only delete entries once they are stored as nodes
+		if (this.pullDelete) {
+			for (CalendarEntry entry : entries)
+				calendarWrapper.deleteEntry(entry);
+		}
 		OrgUtils.announceSyncDone(this);
 	}
 
@@ -120,7 +120,7 @@ public class SyncService extends Service implements
 	private void runSynchronizer() {
 		unsetAlarm();
 		final Synchronizer synchronizer = this.getSynchronizer();
-		final OrgDatabase db = new OrgDatabase(this);
+		final OrgDatabase db = MobileOrgApplication.acquireDatabase(getApplicationContext());
 		final OrgFileParser parser = new OrgFileParser(db, getContentResolver());
 		final boolean calendarEnabled = appSettings.getBoolean("calendarEnabled", false);
 
@@ -136,7 +136,7 @@ public class SyncService extends Service implements
 					getBaseContext().startService(calIntent);
 				}
 				synchronizer.close();
-				db.close();
+				MobileOrgApplication.releaseDatabase(db);
 				syncRunning = false;
 				setAlarm();
 			}
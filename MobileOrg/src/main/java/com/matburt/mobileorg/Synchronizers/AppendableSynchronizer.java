@@ -0,0 +1,25 @@
+package com.matburt.mobileorg.Synchronizers;
+
+import java.io.IOException;
+
+/**
+ * Optional capability of a {@link SynchronizerInterface} that can add to the
+ * end of a remote file without transferring the file itself.
+ */
+public interface AppendableSynchronizer {
+
+	/**
+	 * Called before appending, as support can depend on the remote end.
+	 */
+	public boolean isAppendSupported() throws IOException;
+
+	/**
+	 * Appends the content to the file on the remote end, creating the file if
+	 * it doesn't exist.
+	 *
+	 * @param filename Name of the file, without path
+	 * @param contents Content to add to the end of the file
+	 */
+	public void appendRemoteFile(String filename, String contents)
+			throws IOException;
+}
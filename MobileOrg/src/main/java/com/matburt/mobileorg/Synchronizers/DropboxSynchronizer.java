@@ -91,7 +91,7 @@ public class DropboxSynchronizer implements SynchronizerInterface {
         int bytesRead = 0;
         byte[] buffer = new byte[bufSize];
         OutputStream os =  orgFile.getFileOutputStream();
-        while ( (bytesRead = contents.read(buffer, 0, bytesRead)) >= 0) {
+        while ( (bytesRead = contents.read(buffer)) >= 0) {
             os.write(buffer, 0, bytesRead);
         }
         os.close();
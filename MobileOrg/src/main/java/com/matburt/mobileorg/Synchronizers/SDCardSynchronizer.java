@@ -14,7 +14,8 @@ import android.content.Context;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
-public class SDCardSynchronizer implements SynchronizerInterface {	
+public class SDCardSynchronizer implements SynchronizerInterface,
+		AppendableSynchronizer {	
 
 	private String remoteIndexPath;
 	private String remotePath;
@@ -37,6 +38,21 @@ public class SDCardSynchronizer implements SynchronizerInterface {
 	public void putRemoteFile(String filename, String contents) throws IOException {
 		String outfilePath = this.remotePath + filename;
 		
+		File file = new File(outfilePath);
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file, false));
+		writer.write(contents);
+		writer.close();
+	}
+
+	@Override
+	public boolean isAppendSupported() {
+		return true;
+	}
+
+	@Override
+	public void appendRemoteFile(String filename, String contents) throws IOException {
+		String outfilePath = this.remotePath + filename;
+
 		File file = new File(outfilePath);
 		BufferedWriter writer = new BufferedWriter(new FileWriter(file, true));
 		writer.write(contents);
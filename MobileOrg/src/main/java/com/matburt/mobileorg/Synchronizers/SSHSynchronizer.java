@@ -2,15 +2,11 @@ package com.matburt.mobileorg.Synchronizers;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.StringReader;
-import java.security.cert.CertificateException;
-
-import javax.net.ssl.SSLHandshakeException;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -38,6 +34,8 @@ public class SSHSynchronizer implements SynchronizerInterface {
 
 	private Session session;
         private JSch jsch;
+        /** Opened on first use and kept until postSynchronize(). */
+        private ChannelSftp sftpChannel;
 
 	private SharedPreferences appSettings;
 
@@ -188,23 +186,40 @@ public class SSHSynchronizer implements SynchronizerInterface {
 	}
     }
 
+    /**
+     * All transfers of a synchronization share one session and one sftp
+     * channel, so the key exchange only happens once.
+     */
+    private ChannelSftp getSftpChannel() throws Exception {
+        if (sftpChannel != null && sftpChannel.isConnected()
+                && session != null && session.isConnected())
+            return sftpChannel;
+
+        closeSftpChannel();
+        session = getSession();
+        Channel channel = session.openChannel("sftp");
+        channel.connect();
+        sftpChannel = (ChannelSftp) channel;
+        return sftpChannel;
+    }
+
+    private void closeSftpChannel() {
+        if (sftpChannel != null) {
+            sftpChannel.exit();
+            sftpChannel = null;
+        }
+    }
+
     @Override
     public void putRemoteFile(String filename, String contents) throws IOException {
         ByteArrayInputStream bas = new ByteArrayInputStream(contents.getBytes());
-        putRemoteFile(filename, contents);
+        putRemoteFile(filename, bas);
 	}
 
     @Override
     public void putRemoteFile(String filename, InputStream contents) throws IOException {
         try {
-            session = getSession();
-
-            Channel channel = session.openChannel("sftp");
-            channel.connect();
-            ChannelSftp sftpChannel = (ChannelSftp) channel;
-
-            sftpChannel.put(contents, this.getRootUrl() + filename);
-            sftpChannel.exit();
+            getSftpChannel().put(contents, this.getRootUrl() + filename);
         } catch (Exception e) {
             Log.e("MobileOrg", "Exception in putRemoteFile: " + e.toString());
             throw new IOException(e);
@@ -213,55 +228,65 @@ public class SSHSynchronizer implements SynchronizerInterface {
 
     @Override
 	public BufferedReader getRemoteFile(String filename) throws IOException {
-        StringBuilder contents = null;
-        try {
-            InputStream in = getRemoteFileStream(filename);
-            BufferedReader r = new BufferedReader(new InputStreamReader(in));
-            contents = new StringBuilder();
-            String line;
-            while ((line = r.readLine()) != null) {
-                contents.append(line + "\n");
-            }
-        } catch (Exception e) {
-            Log.e("MobileOrg", "Exception in getRemoteFile: " + e.toString());
-            throw new IOException(e);
-        }
-        return new BufferedReader(new StringReader(contents.toString()));
+        return new BufferedReader(new InputStreamReader(
+                getRemoteFileStream(filename)));
     }
 
+	/**
+	 * The stream reads directly from the shared sftp channel. It has to be
+	 * read to the end or closed before the next transfer starts.
+	 */
 	@Override
-	public InputStream getRemoteFileStream(String filename) throws IOException,
-			CertificateException, SSLHandshakeException 
-	{
-        ByteArrayInputStream bis = null;
+	public InputStream getRemoteFileStream(String filename) throws IOException {
         try {
-	    session = getSession();
-            Channel channel = session.openChannel( "sftp" );
-            channel.connect();
-            ChannelSftp sftpChannel = (ChannelSftp) channel;
             Log.i("MobileOrg", "SFTP Getting: " + this.getRootUrl() + filename);
-            InputStream in = sftpChannel.get(this.getRootUrl() + filename);
-
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            final int bufSize = 1024;
-            int bytesRead = 0;
-            byte[] buffer = new byte[bufSize];
-            while ((bytesRead = in.read(buffer, 0, bufSize))>= 0) {
-            	bos.write(buffer, 0, bytesRead);
-            }
-            sftpChannel.exit();
-            bis = new ByteArrayInputStream(bos.toByteArray());
-
+            return new AutoCloseInputStream(getSftpChannel().get(
+                    this.getRootUrl() + filename));
         } catch (Exception e) {
             Log.e("MobileOrg", "Exception in getRemoteFile: " + e.toString());
             throw new IOException(e);
         }
+	}
 
-        return bis;
+	/**
+	 * Releases the remote file handle as soon as the end of the file is
+	 * reached, so callers that only read to the end don't block the channel.
+	 */
+	private static class AutoCloseInputStream extends FilterInputStream {
+		private boolean closed = false;
+
+		public AutoCloseInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = closed ? -1 : super.read();
+			if (b == -1)
+				close();
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int bytesRead = closed ? -1 : super.read(buffer, offset, count);
+			if (bytesRead == -1)
+				close();
+			return bytesRead;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed == false) {
+				closed = true;
+				super.close();
+			}
+		}
 	}
 
 	@Override
 	public void postSynchronize() {
+		closeSftpChannel();
 		if(this.session != null)
 			this.session.disconnect();
 	}
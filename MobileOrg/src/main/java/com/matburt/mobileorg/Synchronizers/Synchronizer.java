@@ -1,18 +1,19 @@
 package com.matburt.mobileorg.Synchronizers;
 
-import android.annotation.SuppressLint;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.matburt.mobileorg.Gui.SynchronizerNotificationCompat;
+import com.matburt.mobileorg.OrgData.OrgChangeNotifier;
 import com.matburt.mobileorg.OrgData.OrgContract.Edits;
 import com.matburt.mobileorg.OrgData.OrgContract.Files;
 import com.matburt.mobileorg.OrgData.OrgEdit;
 import com.matburt.mobileorg.OrgData.OrgFile;
 import com.matburt.mobileorg.OrgData.OrgFileParser;
 import com.matburt.mobileorg.OrgData.OrgProviderUtils;
+import com.matburt.mobileorg.OrgData.OrgWriteQueue;
 import com.matburt.mobileorg.R;
 import com.matburt.mobileorg.util.FileUtils;
 import com.matburt.mobileorg.util.OrgFileNotFoundException;
@@ -20,17 +21,31 @@ import com.matburt.mobileorg.util.OrgUtils;
 import com.matburt.mobileorg.util.PreferenceUtils;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringReader;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.net.ssl.SSLHandshakeException;
 
@@ -57,6 +72,10 @@ public class Synchronizer {
 	public static final String CHECKSUM_FILE = "checksums.dat";
 	private static final String logTag = "Synchronizer";
 	private static final String ALGORITHM = "PBEWITHMD5AND256BITAES-CBC-OPENSSL";
+	/** Subdirectory of the cache directory that holds downloaded files. */
+	private static final String DOWNLOAD_DIR = "sync";
+	private static final int MAX_FETCHERS = 4;
+	private static final int MAX_CHECKSUM_RETRIES = 2;
 
 	private Context context;
 	private ContentResolver resolver;
@@ -88,9 +107,14 @@ public class Synchronizer {
 			return new ArrayList<String>();
 		}
 		
+		// Observers are notified once with everything the sync changed
+		OrgChangeNotifier.beginBatch();
 		try {
 			announceStartSync();
+			// Changes the user made just before are part of this sync
+			OrgWriteQueue.waitForWrites();
 			ArrayList<String> changedFiles = pull(parser);
+			OrgWriteQueue.waitForWrites();
 			pushCaptures();
 			announceSyncDone();
 			return changedFiles;
@@ -99,13 +123,15 @@ public class Synchronizer {
             Log.e(logTag, "Error synchronizing", e);
             OrgUtils.announceSyncDone(context);
 			return new ArrayList<String>();
+		} finally {
+			OrgChangeNotifier.endBatch();
 		}
 	}
 
 	/**
-	 * This method will fetch the local and the remote version of the capture
-	 * file combine their content. This combined version is transfered to the
-	 * remote.
+	 * Adds the local captures and edits to the end of the remote capture file.
+	 * Synchronizers that can append send only the new content, otherwise the
+	 * remote file is streamed through a temporary file and replaced.
 	 */
 	public void pushCaptures() throws IOException,
 			CertificateException, SSLHandshakeException {
@@ -120,30 +146,25 @@ public class Synchronizer {
 			localContents += file.toString(resolver);
 		} catch (OrgFileNotFoundException e) {}
 		
+		OrgEdit.compactEdits(resolver);
 		localContents += OrgEdit.editsToString(resolver);
 
 		if (localContents.equals("")) {
 			return;
 		}
-		BufferedReader reader = null;
-		if (PreferenceUtils.isEncryptionEnabled()) {
-			reader = decryptFileStream(syncher.getRemoteFileStream(filename));
-		} else {
-			reader = syncher.getRemoteFile(filename);
-		}
-		String remoteContent = FileUtils.read(reader);
 
-		if (remoteContent.indexOf("{\"error\":") == -1) {
-			localContents = remoteContent + "\n" + localContents;
-		}
-
-		if (PreferenceUtils.isEncryptionEnabled()) {
-			ByteArrayInputStream bis = new ByteArrayInputStream(localContents.getBytes());
-			ByteArrayInputStream encDataStream = encryptFileStream(bis);
-
-			syncher.putRemoteFile(filename, encDataStream);
+		if (isAppendSupported()) {
+			((AppendableSynchronizer) syncher).appendRemoteFile(filename,
+					"\n" + localContents);
 		} else {
-			syncher.putRemoteFile(filename, localContents);
+			File uploadFile = appendToRemoteFile(filename, localContents);
+			InputStream uploadStream = new FileInputStream(uploadFile);
+			try {
+				syncher.putRemoteFile(filename, uploadStream);
+			} finally {
+				uploadStream.close();
+				uploadFile.delete();
+			}
 		}
 		
 		try {
@@ -162,7 +183,9 @@ public class Synchronizer {
 	 */
 	public ArrayList<String> pull(OrgFileParser parser) throws SSLHandshakeException, CertificateException, IOException {
 		HashMap<String,String> remoteChecksums = getAndParseChecksumFile();
-		ArrayList<String> changedFiles = getFilesThatChangedRemotely(remoteChecksums);
+		HashMap<String, String> localChecksums = OrgProviderUtils.getFileChecksums(resolver);
+		ArrayList<String> changedFiles = getFilesThatChangedRemotely(
+				remoteChecksums, localChecksums);
 		
 		if(changedFiles.size() == 0)
 			return changedFiles;
@@ -179,20 +202,253 @@ public class Synchronizer {
 		return changedFiles;
 	}
 	
+	/**
+	 * Downloads the files with a pool of fetchers into the cache directory,
+	 * while this thread parses them in the order they arrive. Parsing stays
+	 * on a single thread, so only one thread writes to the database.
+	 * 
+	 * Files with the same content as the local copy are not parsed again.
+	 */
 	private void pull(OrgFileParser parser, ArrayList<String> filesToGet,
 			HashMap<String, String> filenameMap,
 			HashMap<String, String> remoteChecksums)
 			throws SSLHandshakeException, CertificateException, IOException {
+		HashMap<String, String> localDigests = OrgProviderUtils
+				.getFileContentDigests(resolver);
 		final int totalNumberOfFiles = filesToGet.size() + 2;
-		int fileIndex = 1;
-		for (String filename : filesToGet) {
-			announceProgressDownload(filename, fileIndex++, totalNumberOfFiles);
-			Log.d("MobileOrg", context.getString(R.string.downloading) +
-					" " + filename + "/" + filenameMap.get(filename));
-
-			OrgFile orgFile = new OrgFile(filename, filenameMap.get(filename),
-					remoteChecksums.get(filename));
-			getAndParseFile(orgFile, parser);
+		final int numberOfFetchers = getNumberOfFetchers();
+		final File downloadDir = new File(context.getCacheDir(), DOWNLOAD_DIR);
+		FileUtils.deleteDirectoryContents(downloadDir);
+		downloadDir.mkdirs();
+
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfFetchers);
+		CompletionService<FetchedFile> fetchedFiles = new ExecutorCompletionService<FetchedFile>(
+				executor);
+		ArrayList<Future<FetchedFile>> fetchers = new ArrayList<Future<FetchedFile>>();
+
+		try {
+			Iterator<String> filesToFetch = filesToGet.iterator();
+			// Allow a few downloaded files to wait for the parser
+			for (int i = 0; i < 2 * numberOfFetchers && filesToFetch.hasNext(); i++)
+				fetchers.add(fetchedFiles.submit(new FileFetcher(filesToFetch
+						.next(), remoteChecksums, localDigests, downloadDir)));
+
+			for (int fileIndex = 1; fileIndex <= filesToGet.size(); fileIndex++) {
+				FetchedFile fetchedFile = takeFetchedFile(fetchedFiles);
+				if (filesToFetch.hasNext())
+					fetchers.add(fetchedFiles.submit(new FileFetcher(
+							filesToFetch.next(), remoteChecksums, localDigests,
+							downloadDir)));
+
+				final String filename = fetchedFile.filename;
+				announceProgressDownload(filename, fileIndex, totalNumberOfFiles);
+				// The remote checksum is kept even if the download doesn't
+				// match it, otherwise the file would be fetched every time
+				OrgFile orgFile = new OrgFile(filename, filenameMap.get(filename),
+						remoteChecksums.get(filename));
+				orgFile.contentDigest = fetchedFile.digest;
+				try {
+					if (fetchedFile.isUnchanged() == false
+							|| updateUnchangedFile(orgFile) == false)
+						parseFile(orgFile, fetchedFile.file, parser);
+				} finally {
+					fetchedFile.file.delete();
+				}
+			}
+		} finally {
+			for (Future<FetchedFile> fetcher : fetchers)
+				fetcher.cancel(true);
+			executor.shutdownNow();
+			FileUtils.deleteDirectoryContents(downloadDir);
+		}
+	}
+
+	/**
+	 * Only synchronizers that are safe to use from several threads get more
+	 * than one fetcher. The others still download on a separate thread, so
+	 * the next file is fetched while the current one is parsed.
+	 */
+	private int getNumberOfFetchers() {
+		if (syncher instanceof WebDAVSynchronizer
+				|| syncher instanceof SDCardSynchronizer)
+			return MAX_FETCHERS;
+		else
+			return 1;
+	}
+
+	private FetchedFile takeFetchedFile(CompletionService<FetchedFile> fetchedFiles)
+			throws IOException, CertificateException {
+		try {
+			return fetchedFiles.take().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while downloading files");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof CertificateException)
+				throw (CertificateException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause.toString());
+		}
+	}
+
+	/**
+	 * The content of the file is the same as the local copy, only its name
+	 * and checksums are updated.
+	 * 
+	 * @return false if there is no local copy.
+	 */
+	private boolean updateUnchangedFile(OrgFile orgFile) {
+		try {
+			OrgFile localFile = new OrgFile(orgFile.filename, resolver);
+			localFile.name = orgFile.name;
+			localFile.checksum = orgFile.checksum;
+			localFile.contentDigest = orgFile.contentDigest;
+			localFile.updateFile(resolver);
+			Log.d(logTag, "Skipping unchanged file " + orgFile.filename);
+			return true;
+		} catch (OrgFileNotFoundException e) {
+			return false;
+		}
+	}
+
+	private static class FetchedFile {
+		public final String filename;
+		public final File file;
+		/** Digest of the downloaded bytes, null if it couldn't be computed. */
+		public final String digest;
+		private final String localDigest;
+
+		public FetchedFile(String filename, File file, String digest,
+				String localDigest) {
+			this.filename = filename;
+			this.file = file;
+			this.digest = digest;
+			this.localDigest = localDigest;
+		}
+
+		/**
+		 * The digest of the local copy was computed with the same algorithm
+		 * if it has the same length, otherwise they don't match.
+		 */
+		public boolean isUnchanged() {
+			return digest != null && digest.equalsIgnoreCase(localDigest);
+		}
+	}
+
+	/**
+	 * Downloads a remote file unchanged to a temporary file. The download is
+	 * digested while it is written and retried if the result matches neither
+	 * the local copy nor the checksum in checksums.dat.
+	 */
+	private class FileFetcher implements Callable<FetchedFile> {
+		private final String filename;
+		private final String expectedChecksum;
+		private final String localDigest;
+		private final File downloadDir;
+
+		public FileFetcher(String filename, HashMap<String, String> remoteChecksums,
+				HashMap<String, String> localDigests, File downloadDir) {
+			this.filename = filename;
+			this.expectedChecksum = remoteChecksums.get(filename);
+			this.localDigest = localDigests.get(filename);
+			this.downloadDir = downloadDir;
+		}
+
+		@Override
+		public FetchedFile call() throws Exception {
+			FetchedFile fetchedFile = fetch();
+			if (fetchedFile.isUnchanged())
+				return fetchedFile;
+
+			for (int retry = 1; retry <= MAX_CHECKSUM_RETRIES
+					&& isChecksumMismatch(fetchedFile); retry++) {
+				Log.w(logTag, "Checksum of " + filename + " doesn't match "
+						+ CHECKSUM_FILE + ", retrying download");
+				fetchedFile.file.delete();
+				fetchedFile = fetch();
+			}
+
+			if (isChecksumMismatch(fetchedFile))
+				Log.w(logTag, "Checksum of " + filename + " doesn't match "
+						+ CHECKSUM_FILE + ", using download anyway");
+			return fetchedFile;
+		}
+
+		private boolean isChecksumMismatch(FetchedFile fetchedFile) {
+			return fetchedFile.digest != null
+					&& fetchedFile.digest.equalsIgnoreCase(expectedChecksum) == false;
+		}
+
+		private FetchedFile fetch() throws Exception {
+			Log.d("MobileOrg", context.getString(R.string.downloading) + " "
+					+ filename);
+			File file = File.createTempFile("fetch", null, downloadDir);
+			try {
+				MessageDigest digest = null;
+				InputStream in = syncher.getRemoteFileStream(filename);
+				if (in != null) {
+					digest = getDigest(expectedChecksum);
+					if (digest != null)
+						in = new DigestInputStream(in, digest);
+					FileUtils.copy(in, file);
+				} else if (PreferenceUtils.isEncryptionEnabled() == false) {
+					// Synchronizer without stream support, can't be verified
+					BufferedReader reader = syncher.getRemoteFile(filename);
+					if (reader == null)
+						throw new FileNotFoundException(filename);
+					FileUtils.copy(reader, file);
+				} else
+					throw new FileNotFoundException(filename);
+
+				return new FetchedFile(filename, file, getDigestHex(digest),
+						localDigest);
+			} catch (Exception e) {
+				file.delete();
+				throw e;
+			}
+		}
+
+		private String getDigestHex(MessageDigest digest) {
+			if (digest == null)
+				return null;
+			return FileUtils.toHex(digest.digest());
+		}
+	}
+
+	/**
+	 * org-mobile writes the output of org-mobile-checksum-binary, by default
+	 * a SHA1 or MD5 tool. SHA-256 covers a configured sha256sum. The
+	 * algorithm is deduced from the length of the checksum.
+	 * 
+	 * @return Digest for the checksum or null if it is of unknown type.
+	 */
+	private static MessageDigest getDigest(String checksum) {
+		if (checksum == null)
+			return null;
+
+		String algorithm;
+		switch (checksum.trim().length()) {
+		case 32:
+			algorithm = "MD5";
+			break;
+		case 40:
+			algorithm = "SHA-1";
+			break;
+		case 64:
+			algorithm = "SHA-256";
+			break;
+		default:
+			return null;
+		}
+
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			return null;
 		}
 	}
 
@@ -205,12 +461,9 @@ public class Synchronizer {
 		}
 		String remoteIndexContents = FileUtils.read(reader);
 
-		OrgProviderUtils.setTodos(
-				OrgFileParser.getTodosFromIndex(remoteIndexContents), resolver);
-		OrgProviderUtils.setPriorities(
+		OrgProviderUtils.setIndex(
+				OrgFileParser.getTodosFromIndex(remoteIndexContents),
 				OrgFileParser.getPrioritiesFromIndex(remoteIndexContents),
-				resolver);
-		OrgProviderUtils.setTags(
 				OrgFileParser.getTagsFromIndex(remoteIndexContents), resolver);
 		HashMap<String, String> filenameMap = OrgFileParser
 				.getFilesFromIndex(remoteIndexContents);
@@ -225,9 +478,9 @@ public class Synchronizer {
 		return remoteChecksums;
 	}
 	
-	private ArrayList<String> getFilesThatChangedRemotely(HashMap<String, String> remoteChecksums) {
-		HashMap<String, String> localChecksums = OrgProviderUtils.getFileChecksums(resolver);
-		
+	private ArrayList<String> getFilesThatChangedRemotely(
+			HashMap<String, String> remoteChecksums,
+			HashMap<String, String> localChecksums) {
 		ArrayList<String> filesToGet = new ArrayList<String>();
 
 		for (String key : remoteChecksums.keySet()) {
@@ -242,78 +495,107 @@ public class Synchronizer {
 		return filesToGet;
 	}
 	
-	private void getAndParseFile(OrgFile orgFile, OrgFileParser parser)
-			throws CertificateException, IOException {
-		
-		// TODO Generate checksum of file and compare to remoteChecksum
-		
-		try {
-			new OrgFile(orgFile.filename, resolver).removeFile(resolver);
-		} catch (OrgFileNotFoundException e) { /* file did not exist */ }
-
+	private void parseFile(OrgFile orgFile, File file, OrgFileParser parser)
+			throws IOException {
+		// The parser diffs the file against its previous version
 		BufferedReader breader = null;
 		if (PreferenceUtils.isEncryptionEnabled()) {
-			Log.d(logTag, "Decipher file: " + orgFile.name + " with key: " + PreferenceUtils.getEncryptionPass());
-        	breader = decryptFileStream(syncher.getRemoteFileStream(orgFile.filename));
+			Log.d(logTag, "Decipher file: " + orgFile.name);
+			breader = decryptFileStream(new FileInputStream(file));
 		} else {
-			breader = syncher.getRemoteFile(orgFile.filename);
-        }
-		parser.parse(orgFile, breader, this.context);
+			breader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), FileUtils.CHARSET));
+		}
+
+		try {
+			parser.parse(orgFile, breader, this.context);
+		} finally {
+			breader.close();
+		}
 	}
 	
-	@SuppressLint("NewApi")
-	private BufferedReader decryptFileStream(InputStream isr) {
-		final String password = PreferenceUtils.getEncryptionPass();
+	/**
+	 * Encrypted files can't be appended to, as the content is enciphered as a
+	 * whole.
+	 */
+	private boolean isAppendSupported() throws IOException {
+		return syncher instanceof AppendableSynchronizer
+				&& PreferenceUtils.isEncryptionEnabled() == false
+				&& ((AppendableSynchronizer) syncher).isAppendSupported();
+	}
 
-		byte[] decData = null;
-		final int bufSize = 8192;
+	/**
+	 * Writes the remote file followed by the contents to a temporary file in
+	 * the cache directory, enciphered if encryption is enabled. The caller
+	 * deletes the file.
+	 */
+	private File appendToRemoteFile(String filename, String contents)
+			throws IOException, CertificateException {
+		BufferedReader reader;
+		if (PreferenceUtils.isEncryptionEnabled())
+			reader = decryptFileStream(syncher.getRemoteFileStream(filename));
+		else
+			reader = syncher.getRemoteFile(filename);
 
+		File file = File.createTempFile("upload", null, context.getCacheDir());
+		Writer writer = createUploadWriter(file);
 		try {
-			// Read the bytes
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			byte[] rawData = new byte[bufSize];
-			int bytesRead = 0;
-			while ((bytesRead = isr.read(rawData, 0, bufSize)) >= 0) {
-				bos.write(rawData, 0, bytesRead);
-			}
-			ByteArrayInputStream bis = new ByteArrayInputStream(bos.toByteArray());
-
-			String rawDataStr = new String(bos.toByteArray(), StandardCharsets.UTF_8);
-			rawDataStr = rawDataStr.substring(0, Math.min(20, rawDataStr.length()));
-			//Log.d(logTag, "Decipher data: " + rawDataStr);
-
-			// Decrypt to text
-			OpenSSLPBEInputStream decIS = new OpenSSLPBEInputStream(bis, ALGORITHM, 1, password.toCharArray());
-			decData = new byte[decIS.available()];
-			decIS.read(decData);
-
-			decIS.close();
+			if (reader != null)
+				copyRemoteContent(reader, writer);
+			writer.write(contents);
 		} catch (IOException e) {
-			Log.e(logTag, "Decryption Error:" + e.getMessage());
+			writer.close();
+			file.delete();
+			throw e;
+		} finally {
+			writer.close();
 		}
+		return file;
+	}
 
-		String strData = new String(decData, StandardCharsets.UTF_8);
-		Log.d(logTag, "Decrypted data: " + strData.substring(0, Math.min(20, strData.length())) + "...");
+	/**
+	 * Copies the remote content followed by a newline. Some synchronizers
+	 * return an error object instead of a missing file, it is dropped.
+	 */
+	private static void copyRemoteContent(BufferedReader reader, Writer writer)
+			throws IOException {
+		try {
+			final char[] buffer = new char[8192];
+			int charsRead = reader.read(buffer);
+			if (charsRead >= 0
+					&& new String(buffer, 0, charsRead).indexOf("{\"error\":") != -1)
+				return;
+
+			while (charsRead >= 0) {
+				writer.write(buffer, 0, charsRead);
+				charsRead = reader.read(buffer);
+			}
+			writer.write("\n");
+		} finally {
+			reader.close();
+		}
+	}
 
-		BufferedReader decReader = new BufferedReader(new StringReader(strData));
-		return decReader;
+	private Writer createUploadWriter(File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		if (PreferenceUtils.isEncryptionEnabled()) {
+			final String password = PreferenceUtils.getEncryptionPass();
+			out = new OpenSSLPBEOutputStream(out, ALGORITHM, 1,
+					password.toCharArray());
+		}
+		return new OutputStreamWriter(out, FileUtils.CHARSET);
 	}
 
-	private ByteArrayInputStream encryptFileStream(ByteArrayInputStream bis) throws IOException {
+	/**
+	 * Wraps the stream in a reader that deciphers it while it is being read.
+	 * Only one cipher block is held in memory at a time.
+	 */
+	private BufferedReader decryptFileStream(InputStream in) throws IOException {
 		final String password = PreferenceUtils.getEncryptionPass();
 
-		final int bufSize = 8192;
-		byte[] encData = new byte[bufSize];
-		int bytesRead = 0;
-
-		ByteArrayOutputStream byteOS = new ByteArrayOutputStream();
-		OpenSSLPBEOutputStream encOS = new OpenSSLPBEOutputStream(byteOS, ALGORITHM, 1, password.toCharArray());
-		while ( (bytesRead = bis.read(encData, 0, bufSize)) >= 0) {
-			encOS.write(encData, 0, bytesRead);
-		}
-		encOS.flush();
-		encOS.close();
-		return new ByteArrayInputStream(byteOS.toByteArray());
+		OpenSSLPBEInputStream decIS = new OpenSSLPBEInputStream(in, ALGORITHM,
+				1, password.toCharArray());
+		return new BufferedReader(new InputStreamReader(decIS, FileUtils.CHARSET));
 	}
 
 	private void announceStartSync() {
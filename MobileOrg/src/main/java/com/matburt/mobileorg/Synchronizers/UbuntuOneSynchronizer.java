@@ -28,6 +28,7 @@ import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONArray;
@@ -136,6 +137,15 @@ private static final String BASE_TOKEN_NAME = "Ubuntu One @ MobileOrg:";
 
     @Override
     public void putRemoteFile(String filename, String contents) throws IOException {
+        putRemoteEntity(filename, new StringEntity(contents, "UTF-8"));
+    }
+
+    @Override
+    public void putRemoteFile(String filename, InputStream contents) throws IOException {
+        putRemoteEntity(filename, new InputStreamEntity(contents, -1));
+    }
+
+    private void putRemoteEntity(String filename, HttpEntity contents) throws IOException {
         try {
             buildConsumer();
             String latterPart = remoteIndexPath + filename;
@@ -168,7 +178,7 @@ private static final String BASE_TOKEN_NAME = "Ubuntu One @ MobileOrg:";
             url = uri.toURL();
 
             request = new HttpPut(url.toString());
-            request.setEntity(new StringEntity(contents, "UTF-8"));
+            request.setEntity(contents);
             httpClient = new DefaultHttpClient();
 
             signRequest(request);
@@ -181,11 +191,6 @@ private static final String BASE_TOKEN_NAME = "Ubuntu One @ MobileOrg:";
         }
     }
 
-    @Override
-    public void putRemoteFile(String filename, InputStream contents) throws IOException {
-        // TODO Auto-generated method stub
-    }
-
     @Override
     public BufferedReader getRemoteFile(String filename) {
         try { 
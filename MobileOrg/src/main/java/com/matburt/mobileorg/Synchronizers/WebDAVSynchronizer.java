@@ -2,7 +2,11 @@ package com.matburt.mobileorg.Synchronizers;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -11,11 +15,15 @@ import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.ProtocolException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -38,7 +46,12 @@ import com.matburt.mobileorg.Gui.CertificateConflictActivity;
 import com.matburt.mobileorg.util.FileUtils;
 import com.matburt.mobileorg.util.OrgUtils;
 
-public class WebDAVSynchronizer implements SynchronizerInterface {
+public class WebDAVSynchronizer implements SynchronizerInterface,
+		AppendableSynchronizer {
+	/** Compliance class announced by servers supporting partial updates. */
+	private static final String PARTIAL_UPDATE = "sabredav-partialupdate";
+	private static final String PARTIAL_UPDATE_TYPE = "application/x-sabredav-partialupdate";
+
 
     class IntelligentX509TrustManager implements X509TrustManager {
         Context c;
@@ -96,12 +109,190 @@ public class WebDAVSynchronizer implements SynchronizerInterface {
         }
     }
 
+	/**
+	 * Keeps the last response of small files together with its ETag and
+	 * Last-Modified header. Requests for these files are conditional and a
+	 * 304 response is answered from the cache.
+	 */
+	private static class ResponseCache {
+		private static final String CACHE_DIR = "webdav";
+		private static final String PREFERENCES = "webdav_cache";
+		private static final String ETAG = "etag:";
+		private static final String LAST_MODIFIED = "lastModified:";
+		/** Larger files are not cached. */
+		private static final int MAX_SIZE = 512 * 1024;
+
+		private final File cacheDir;
+		private final SharedPreferences validators;
+
+		public ResponseCache(Context context) {
+			this.cacheDir = new File(context.getCacheDir(), CACHE_DIR);
+			this.validators = context.getSharedPreferences(PREFERENCES,
+					Context.MODE_PRIVATE);
+		}
+
+		/**
+		 * Adds the validators of the cached response to the request.
+		 */
+		public void addConditionalHeaders(String url, HttpURLConnection con) {
+			if (getFile(url).exists() == false)
+				return;
+
+			String etag = validators.getString(ETAG + url, null);
+			if (etag != null)
+				con.addRequestProperty("If-None-Match", etag);
+			String lastModified = validators.getString(LAST_MODIFIED + url, null);
+			if (lastModified != null)
+				con.addRequestProperty("If-Modified-Since", lastModified);
+		}
+
+		public InputStream get(String url) throws FileNotFoundException {
+			return new FileInputStream(getFile(url));
+		}
+
+		/**
+		 * Returns a stream that stores the response in the cache once it
+		 * has been read completely.
+		 */
+		public InputStream put(String url, HttpURLConnection con, InputStream in) {
+			remove(url);
+
+			final String etag = con.getHeaderField("ETag");
+			final String lastModified = con.getHeaderField("Last-Modified");
+			if ((etag == null && lastModified == null)
+					|| con.getContentLength() > MAX_SIZE)
+				return in;
+
+			try {
+				cacheDir.mkdirs();
+				File tempFile = File.createTempFile("response", null, cacheDir);
+				return new CachingInputStream(in, tempFile, url, etag, lastModified);
+			} catch (IOException e) {
+				return in;
+			}
+		}
+
+		public void remove(String url) {
+			getFile(url).delete();
+			validators.edit().remove(ETAG + url).remove(LAST_MODIFIED + url)
+					.commit();
+		}
+
+		private File getFile(String url) {
+			try {
+				MessageDigest digest = MessageDigest.getInstance("MD5");
+				return new File(cacheDir, FileUtils.toHex(digest.digest(url
+						.getBytes())));
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private class CachingInputStream extends FilterInputStream {
+			private final File tempFile;
+			private final String url;
+			private final String etag;
+			private final String lastModified;
+			private OutputStream out;
+			private int size = 0;
+
+			public CachingInputStream(InputStream in, File tempFile, String url,
+					String etag, String lastModified) throws FileNotFoundException {
+				super(in);
+				this.tempFile = tempFile;
+				this.url = url;
+				this.etag = etag;
+				this.lastModified = lastModified;
+				this.out = new FileOutputStream(tempFile);
+			}
+
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b == -1)
+					commit();
+				else
+					write(new byte[] { (byte) b }, 0, 1);
+				return b;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int count) throws IOException {
+				int bytesRead = super.read(buffer, offset, count);
+				if (bytesRead == -1)
+					commit();
+				else
+					write(buffer, offset, bytesRead);
+				return bytesRead;
+			}
+
+			@Override
+			public void close() throws IOException {
+				abort();
+				super.close();
+			}
+
+			private void write(byte[] buffer, int offset, int count) {
+				if (out == null)
+					return;
+
+				size += count;
+				try {
+					if (size > MAX_SIZE)
+						abort();
+					else
+						out.write(buffer, offset, count);
+				} catch (IOException e) {
+					abort();
+				}
+			}
+
+			private void commit() {
+				if (out == null)
+					return;
+
+				try {
+					out.close();
+					out = null;
+					if (tempFile.renameTo(getFile(url)) == false) {
+						tempFile.delete();
+						return;
+					}
+
+					Editor edit = validators.edit();
+					if (etag != null)
+						edit.putString(ETAG + url, etag);
+					if (lastModified != null)
+						edit.putString(LAST_MODIFIED + url, lastModified);
+					edit.commit();
+				} catch (IOException e) {
+					abort();
+				}
+			}
+
+			/** Discards a response that was not read completely. */
+			private void abort() {
+				if (out == null)
+					return;
+
+				try {
+					out.close();
+				} catch (IOException e) {}
+				out = null;
+				tempFile.delete();
+			}
+		}
+	}
+
 	private String remoteIndexPath;
 	private String remotePath;
     private String username;
     private String password;
 	private Context context;
 	private Resources r;
+	private ResponseCache responseCache;
+	/** Whether the server accepts partial updates, null if not asked yet. */
+	private Boolean appendSupported = null;
 	
 	public WebDAVSynchronizer(Context parentContext) {
 		this.context = parentContext;
@@ -114,6 +305,7 @@ public class WebDAVSynchronizer implements SynchronizerInterface {
 
 		this.username = sharedPreferences.getString("webUser", "");
 		this.password = sharedPreferences.getString("webPass", "");
+		this.responseCache = new ResponseCache(parentContext);
         this.handleTrustRelationship(parentContext);
 	}
 
@@ -191,6 +383,83 @@ public class WebDAVSynchronizer implements SynchronizerInterface {
         putUrlFile(urlActual, contents);
     }
 
+	/**
+	 * Partial updates are an extension of SabreDAV, which announces it in the
+	 * DAV header. Plain PUT with Content-Range is not used, servers that
+	 * don't understand it would replace the file with the appended part.
+	 */
+	@Override
+	public boolean isAppendSupported() throws IOException {
+		if (appendSupported == null) {
+			if (isPatchSupported() == false) {
+				appendSupported = false;
+				return false;
+			}
+
+			HttpURLConnection con = this.createConnection(this.remotePath);
+			if (con == null)
+				return false;
+			try {
+				con.setRequestMethod("OPTIONS");
+				con.connect();
+				String dav = con.getHeaderField("DAV");
+				appendSupported = con.getResponseCode() >= HttpURLConnection.HTTP_OK
+						&& con.getResponseCode() <= 299 && dav != null
+						&& dav.contains(PARTIAL_UPDATE);
+				drainStream(con.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST ?
+						con.getErrorStream() : con.getInputStream());
+			} finally {
+				con.disconnect();
+			}
+		}
+		return appendSupported;
+	}
+
+	/**
+	 * Older HttpURLConnection implementations refuse PATCH requests.
+	 */
+	private boolean isPatchSupported() {
+		HttpURLConnection con = this.createConnection(this.remotePath);
+		if (con == null)
+			return false;
+		try {
+			con.setRequestMethod("PATCH");
+			return true;
+		} catch (ProtocolException e) {
+			return false;
+		} finally {
+			con.disconnect();
+		}
+	}
+
+	@Override
+	public void appendRemoteFile(String filename, String contents) throws IOException {
+		String url = this.getRootUrl() + filename;
+		responseCache.remove(url);
+		HttpURLConnection con = this.createConnection(url);
+		con.setRequestMethod("PATCH");
+		byte[] content = contents.getBytes(FileUtils.CHARSET);
+		con.addRequestProperty("Content-Type", PARTIAL_UPDATE_TYPE);
+		con.addRequestProperty("X-Update-Range", "append");
+		con.setFixedLengthStreamingMode(content.length);
+		con.setDoOutput(true);
+		OutputStream out = con.getOutputStream();
+		out.write(content);
+		out.close();
+
+		if (con.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+			drainStream(con.getErrorStream());
+			putUrlFile(url, contents);
+			return;
+		}
+		drainStream(con.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST ?
+				con.getErrorStream() : con.getInputStream());
+		if (con.getResponseCode() < HttpURLConnection.HTTP_OK || con.getResponseCode() > 299) {
+			throw new IOException(r.getString(R.string.error_url_fetch_detail,
+					url, con.getResponseMessage()));
+		}
+	}
+
     @Override
 	public BufferedReader getRemoteFile(String filename) throws IOException, CertificateException,
                                                                    SSLHandshakeException {
@@ -254,7 +523,8 @@ public class WebDAVSynchronizer implements SynchronizerInterface {
         }
         con.setReadTimeout(60000);
         con.setConnectTimeout(60000);
-        con.addRequestProperty("Expect", "100-continue");
+        // Connections are reused as long as every stream is read to the end
+        con.addRequestProperty("Connection", "keep-alive");
         con.addRequestProperty("Authorization",
                                "Basic "+Base64.encodeToString((this.username + ":" + this.password).getBytes(),
                                                       Base64.NO_WRAP));
@@ -266,7 +536,28 @@ public class WebDAVSynchronizer implements SynchronizerInterface {
         HttpURLConnection con = this.createConnection(url);
         con.setRequestMethod("GET");
         con.setDoInput(true);
+        // Setting the header ourselves disables transparent decompression
+        con.addRequestProperty("Accept-Encoding", "gzip");
+        responseCache.addConditionalHeaders(url, con);
         con.connect();
+        if (con.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            Log.i("MobileOrg", "Not modified " + url);
+            try {
+                drainStream(con.getInputStream());
+            } catch (IOException e) {}
+            try {
+                return responseCache.get(url);
+            } catch (FileNotFoundException e) {
+                // The cached response was deleted after the request was sent,
+                // without it the validators are cleared and the file fetched again
+                Log.w("MobileOrg", "Cached response of " + url + " is gone");
+                responseCache.remove(url);
+                return getUrlStream(url);
+            }
+        }
+        if (con.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST)
+            drainStream(con.getErrorStream());
+
 		if (con.getResponseCode() == HttpURLConnection.HTTP_UNAUTHORIZED) {
 			throw new FileNotFoundException(r.getString(
 					R.string.error_url_fetch_detail, url,
@@ -287,20 +578,41 @@ public class WebDAVSynchronizer implements SynchronizerInterface {
 			throw new IOException(r.getString(R.string.error_url_fetch_detail,
                                               url, con.getResponseMessage()));
 		}
-		return con.getInputStream();
+
+		InputStream in = con.getInputStream();
+		if ("gzip".equalsIgnoreCase(con.getContentEncoding()))
+			in = new GZIPInputStream(in);
+		return responseCache.put(url, con, in);
+	}
+
+	/**
+	 * Reads the rest of the stream, so the connection can be reused.
+	 */
+	private static void drainStream(InputStream in) {
+		if (in == null)
+			return;
+
+		try {
+			byte[] buffer = new byte[1024];
+			while (in.read(buffer) >= 0)
+				;
+			in.close();
+		} catch (IOException e) {}
 	}
 
 	private void putUrlFile(String url, String content) throws IOException {
 		try {
+            responseCache.remove(url);
             HttpURLConnection con = this.createConnection(url);
             con.setRequestMethod("PUT");
+            con.addRequestProperty("Expect", "100-continue");
             con.setDoOutput(true);
             OutputStreamWriter out = new OutputStreamWriter(
                                               con.getOutputStream());
             out.write(content);
             out.flush();
             out.close();
-            con.getInputStream();
+            drainStream(con.getInputStream());
             if (con.getResponseCode() < HttpURLConnection.HTTP_OK || con.getResponseCode() > 299) {
                 throw new IOException(r.getString(R.string.error_url_fetch_detail,
                                                   url, con.getResponseMessage()));
@@ -313,8 +625,10 @@ public class WebDAVSynchronizer implements SynchronizerInterface {
 
     private void putUrlFile(String url, InputStream content) throws IOException {
         try {
+            responseCache.remove(url);
             HttpURLConnection con = this.createConnection(url);
             con.setRequestMethod("PUT");
+            con.addRequestProperty("Expect", "100-continue");
             con.setDoOutput(true);
             final int bufSize = 8192;
             int bytesRead = 0;
@@ -328,7 +642,7 @@ public class WebDAVSynchronizer implements SynchronizerInterface {
             out.flush();
             out.close();
 
-            con.getInputStream();
+            drainStream(con.getInputStream());
             if (con.getResponseCode() < HttpURLConnection.HTTP_OK || con.getResponseCode() > 299) {
                 throw new IOException(r.getString(R.string.error_url_fetch_detail,
                         url, con.getResponseMessage()));
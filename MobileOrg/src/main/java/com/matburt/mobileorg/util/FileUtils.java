@@ -9,9 +9,12 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -22,6 +25,7 @@ public class FileUtils {
 
 	public static final String CAPTURE_FILE = "mobileorg.org";
 	public static final String CAPTURE_FILE_ALIAS = "Captures";
+	public static final String CHARSET = "UTF-8";
 
 	private Context context;
 	private String fileName;
@@ -51,6 +55,53 @@ public class FileUtils {
 		return fileContents.toString();
 	}
 
+	public static void copy(InputStream in, File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			final byte[] buffer = new byte[8192];
+			int bytesRead;
+			while ((bytesRead = in.read(buffer)) >= 0)
+				out.write(buffer, 0, bytesRead);
+		} finally {
+			out.close();
+			in.close();
+		}
+	}
+
+	public static void copy(Reader reader, File file) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), CHARSET);
+		try {
+			final char[] buffer = new char[8192];
+			int charsRead;
+			while ((charsRead = reader.read(buffer)) >= 0)
+				writer.write(buffer, 0, charsRead);
+		} finally {
+			writer.close();
+			reader.close();
+		}
+	}
+
+	/**
+	 * @return Lower case hexadecimal representation, as written by md5sum.
+	 */
+	public static String toHex(byte[] bytes) {
+		StringBuilder result = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			result.append(Character.forDigit((b >> 4) & 0xf, 16));
+			result.append(Character.forDigit(b & 0xf, 16));
+		}
+		return result.toString();
+	}
+
+	public static void deleteDirectoryContents(File directory) {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+
+		for (File file : files)
+			file.delete();
+	}
+
 	public void write(String filePath, String content) throws IOException {
 		File file = new File(filePath);
 		BufferedWriter writer = new BufferedWriter(new FileWriter(file, true));
@@ -13,6 +13,8 @@ import android.text.TextUtils;
 
 public class PreferenceUtils {
 	private static final int DEFAULT_FONTSIZE = 14;
+	private static final String DEFAULT_DATABASE_SYNCHRONOUS = "NORMAL";
+	private static final int DEFAULT_DATABASE_CACHE_SIZE = 2000;
 
 	
 	public static boolean getCombineBlockAgendas() {
@@ -23,6 +25,39 @@ public class PreferenceUtils {
 		} catch (UnsupportedOperationException e) { return false; }
 	}
 	
+	/**
+	 * @return Synchronous level of the database, one of OFF, NORMAL or FULL.
+	 */
+	public static String getDatabaseSynchronous() {
+		Context context = MobileOrgApplication.getContext();
+		try {
+			String level = PreferenceManager.getDefaultSharedPreferences(context)
+					.getString("databaseSynchronous", DEFAULT_DATABASE_SYNCHRONOUS);
+			if (level.equals("OFF") || level.equals("NORMAL") || level.equals("FULL"))
+				return level;
+		} catch (UnsupportedOperationException e) {}
+		
+		return DEFAULT_DATABASE_SYNCHRONOUS;
+	}
+	
+	/**
+	 * @return Size of the database page cache in pages.
+	 */
+	public static int getDatabaseCacheSize() {
+		Context context = MobileOrgApplication.getContext();
+		try {
+			int cacheSize = Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(
+					context).getString("databaseCacheSize", Integer.toString(DEFAULT_DATABASE_CACHE_SIZE)));
+			
+			if (cacheSize > 0)
+				return cacheSize;
+		} catch (NumberFormatException e) {
+		} catch (UnsupportedOperationException e) {
+		}
+		
+		return DEFAULT_DATABASE_CACHE_SIZE;
+	}
+	
 	public static String getDefaultTodo() {
 		Context context = MobileOrgApplication.getContext();
 		return PreferenceManager.getDefaultSharedPreferences(context)
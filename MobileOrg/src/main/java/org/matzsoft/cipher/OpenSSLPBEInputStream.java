@@ -15,8 +15,9 @@ public class OpenSSLPBEInputStream extends InputStream {
 
     private byte[] bufferClear = null;
 
-    private int index = Integer.MAX_VALUE;
-    private int maxIndex = 0;
+    private int index = 0;
+    private int maxIndex = -1;
+    private boolean finished = false;
 
     public OpenSSLPBEInputStream(final InputStream streamIn, String algIn, int iterationCount, char[] password)
             throws IOException {
@@ -31,43 +32,73 @@ public class OpenSSLPBEInputStream extends InputStream {
 
     @Override
     public int available() throws IOException {
-        return inStream.available();
+        return maxIndex - index + 1;
     }
 
     @Override
     public int read() throws IOException {
+        if (!fillBuffer()) {
+            return -1;
+        }
 
-        if (index > maxIndex) {
-            index = 0;
-            int read = inStream.read(bufferCipher);
-            if (read != -1) {
-                bufferClear = cipher.update(bufferCipher, 0, read);
+        return bufferClear[index++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fillBuffer()) {
+            return -1;
+        }
+
+        int count = Math.min(len, maxIndex - index + 1);
+        System.arraycopy(bufferClear, index, b, off, count);
+        index += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inStream.close();
+    }
+
+    /**
+     * Decrypts the next block of the underlying stream when the clear text
+     * buffer is used up. Only a single block is held in memory at a time.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fillBuffer() throws IOException {
+        while (index > maxIndex) {
+            if (finished) {
+                return false;
             }
-            if (read == -1 || bufferClear == null || bufferClear.length == 0) {
+
+            int read = inStream.read(bufferCipher);
+            if (read == -1) {
+                finished = true;
                 try {
                     bufferClear = cipher.doFinal();
                 } catch (Exception e) {
                     bufferClear = null;
                 }
+            } else {
+                bufferClear = cipher.update(bufferCipher, 0, read);
             }
-            if (bufferClear == null || bufferClear.length == 0) {
-                return -1;
-            }
-            maxIndex = bufferClear.length - 1;
-        }
 
-        if (bufferClear == null || bufferClear.length == 0) {
-            return -1;
+            index = 0;
+            maxIndex = bufferClear == null ? -1 : bufferClear.length - 1;
         }
 
-        return bufferClear[index++] & 0xff;
-
+        return true;
     }
 
     private byte[] readSalt() throws IOException {
 
         byte[] headerBytes = new byte[OpenSSLPBECommon.OPENSSL_HEADER_STRING.length()];
-        inStream.read(headerBytes);
+        readFully(headerBytes);
         String headerString = new String(headerBytes, OpenSSLPBECommon.OPENSSL_HEADER_ENCODE);
 
         if (!OpenSSLPBECommon.OPENSSL_HEADER_STRING.equals(headerString)) {
@@ -75,9 +106,20 @@ public class OpenSSLPBEInputStream extends InputStream {
         }
 
         byte[] salt = new byte[OpenSSLPBECommon.SALT_SIZE_BYTES];
-        inStream.read(salt);
+        readFully(salt);
 
         return salt;
     }
 
+    private void readFully(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            int read = inStream.read(bytes, offset, bytes.length - offset);
+            if (read == -1) {
+                throw new IOException("unexpected end of stream");
+            }
+            offset += read;
+        }
+    }
+
 }
\ No newline at end of file
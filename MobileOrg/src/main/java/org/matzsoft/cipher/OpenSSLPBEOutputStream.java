@@ -3,18 +3,20 @@ package org.matzsoft.cipher;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 
 import javax.crypto.Cipher;
 
 public class OpenSSLPBEOutputStream extends OutputStream {
 
-private static final int BUFFER_SIZE = 5 * 1024 * 1024;
+private static final int BUFFER_SIZE = 64 * 1024;
 
 private final Cipher cipher;
 private final OutputStream outStream;
 private final byte[] buffer = new byte[BUFFER_SIZE];
 private int bufferIndex = 0;
+private boolean closed = false;
 
 public OpenSSLPBEOutputStream(final OutputStream outputStream, String algIn, int iterationCount,
                               char[] password) throws IOException {
@@ -36,30 +38,57 @@ public void write(int b) throws IOException {
     buffer[bufferIndex] = (byte) b;
     bufferIndex++;
     if (bufferIndex == BUFFER_SIZE) {
-        byte[] result = cipher.update(buffer, 0, bufferIndex);
-        outStream.write(result);
-        bufferIndex = 0;
+        encryptBuffer();
     }
 }
 
 @Override
-public void flush() throws IOException {
-    if (bufferIndex > 0) {
-        byte[] result;
-        try {
-            result = cipher.doFinal(buffer, 0, bufferIndex);
-            outStream.write(result);
-        } catch (Exception e) {
-            throw new IOException(e);
+public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+        int count = Math.min(len, BUFFER_SIZE - bufferIndex);
+        System.arraycopy(b, off, buffer, bufferIndex, count);
+        bufferIndex += count;
+        off += count;
+        len -= count;
+        if (bufferIndex == BUFFER_SIZE) {
+            encryptBuffer();
         }
-        bufferIndex = 0;
     }
 }
 
+private void encryptBuffer() throws IOException {
+    byte[] result = cipher.update(buffer, 0, bufferIndex);
+    if (result != null) {
+        outStream.write(result);
+    }
+    bufferIndex = 0;
+}
+
+/**
+ * Only flushes the underlying stream. The final block and its padding are
+ * written by {@link #close()}, so flushing does not end the cipher stream.
+ */
+@Override
+public void flush() throws IOException {
+    outStream.flush();
+}
+
 @Override
 public void close() throws IOException {
-    flush();
-    outStream.close();
+    if (closed) {
+        return;
+    }
+    closed = true;
+
+    try {
+        byte[] result = cipher.doFinal(buffer, 0, bufferIndex);
+        outStream.write(result);
+    } catch (GeneralSecurityException e) {
+        throw new IOException(e);
+    } finally {
+        bufferIndex = 0;
+        outStream.close();
+    }
 }
 
 private void writeHeader(byte[] salt) throws IOException {